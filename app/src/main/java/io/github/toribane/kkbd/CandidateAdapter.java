@@ -0,0 +1,245 @@
+/*
+ * Copyright 2024 kachaya
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.toribane.kkbd;
+
+import android.text.PrecomputedText;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.LayoutRes;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 候補ビューの中身
+ * 前の候補一覧との差分だけを通知して、変わっていない候補のビューはそのまま使う
+ * 表記を計測済みのPrecomputedTextがあればそれを使い、表示するときに測り直さない
+ */
+public class CandidateAdapter extends RecyclerView.Adapter<CandidateAdapter.ViewHolder> {
+
+    // 選択表示だけを変えるときのpayload
+    private static final Object PAYLOAD_SELECTION = new Object();
+
+    /**
+     * 候補がタップされたときに呼ばれる
+     */
+    public interface Listener {
+        void onCandidateClick(int position);
+    }
+
+    private final Listener mListener;
+    private final int mItemLayout;
+    private Candidate[] mCandidates = new Candidate[0];
+    // 候補ごとのstable id、読みと表記が同じ候補には前の一覧と同じidを付ける
+    // 同じ一覧の中では重ならないように、順に振った番号を使う
+    private long[] mItemIds = new long[0];
+    private Map<Candidate, Long> mItemIdMap = new HashMap<>();
+    private long mNextItemId;
+    private Map<String, PrecomputedText> mLabels = Collections.emptyMap();
+    private int mSelectedIndex = -1;
+    // 候補ビューの文字の属性、ビューを作るまではわからない
+    private volatile PrecomputedText.Params mTextMetricsParams;
+
+    /**
+     * @param listener   候補がタップされたときに呼ばれる
+     * @param itemLayout 候補1つのレイアウト
+     */
+    public CandidateAdapter(Listener listener, @LayoutRes int itemLayout) {
+        mListener = listener;
+        mItemLayout = itemLayout;
+        setHasStableIds(true);
+    }
+
+    /**
+     * 別スレッドで表記を計測する
+     *
+     * @param candidates 候補一覧
+     * @param params     getTextMetricsParams()の値
+     * @return 表記と計測結果
+     */
+    public static Map<String, PrecomputedText> precomputeLabels(Candidate[] candidates, PrecomputedText.Params params) {
+        Map<String, PrecomputedText> labels = new HashMap<>();
+        for (Candidate candidate : candidates) {
+            if (!labels.containsKey(candidate.surface)) {
+                labels.put(candidate.surface, PrecomputedText.create(candidate.surface, params));
+            }
+        }
+        return labels;
+    }
+
+    // 表記の計測に使う属性、まだ候補ビューがなければnull
+    @Nullable
+    public PrecomputedText.Params getTextMetricsParams() {
+        return mTextMetricsParams;
+    }
+
+    public void setCandidates(Candidate[] candidates) {
+        setCandidates(candidates, null);
+    }
+
+    /**
+     * 候補一覧を差し替える、選択は解除する
+     *
+     * @param candidates 候補一覧、nullなら空
+     * @param labels     precomputeLabels()で計測した表記、なければnull
+     */
+    public void setCandidates(Candidate[] candidates, @Nullable Map<String, PrecomputedText> labels) {
+        Candidate[] oldCandidates = mCandidates;
+        Candidate[] newCandidates = (candidates == null) ? new Candidate[0] : candidates;
+        long[] oldItemIds = mItemIds;
+        long[] newItemIds = new long[newCandidates.length];
+        Map<Candidate, Long> oldItemIdMap = mItemIdMap;
+        Map<Candidate, Long> newItemIdMap = new HashMap<>();
+        for (int i = 0; i < newCandidates.length; i++) {
+            Long id = newItemIdMap.containsKey(newCandidates[i]) ? null : oldItemIdMap.get(newCandidates[i]);
+            newItemIds[i] = (id != null) ? id : mNextItemId++;
+            newItemIdMap.putIfAbsent(newCandidates[i], newItemIds[i]);
+        }
+        mCandidates = newCandidates;
+        mItemIds = newItemIds;
+        mItemIdMap = newItemIdMap;
+        mLabels = (labels == null) ? Collections.emptyMap() : labels;
+        mSelectedIndex = -1;
+        DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldCandidates.length;
+            }
+
+            @Override
+            public int getNewListSize() {
+                return newCandidates.length;
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                return oldItemIds[oldItemPosition] == newItemIds[newItemPosition];
+            }
+
+            // 表示するのは表記だけ、選択表示はpayloadで直す
+            @Override
+            public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                return true;
+            }
+        }, false).dispatchUpdatesTo(this);
+    }
+
+    /**
+     * 候補一覧の後ろに続きを追加する、選択はそのまま
+     *
+     * @param candidates 追加する候補
+     */
+    public void addCandidates(List<Candidate> candidates) {
+        if (candidates.isEmpty()) {
+            return;
+        }
+        int start = mCandidates.length;
+        mCandidates = Arrays.copyOf(mCandidates, start + candidates.size());
+        mItemIds = Arrays.copyOf(mItemIds, start + candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            mCandidates[start + i] = candidates.get(i);
+            mItemIds[start + i] = mNextItemId++;
+            mItemIdMap.putIfAbsent(candidates.get(i), mItemIds[start + i]);
+        }
+        notifyItemRangeInserted(start, candidates.size());
+    }
+
+    // 選択した候補だけ表示を変える
+    public void setSelectedIndex(int index) {
+        if (index == mSelectedIndex) {
+            return;
+        }
+        int oldIndex = mSelectedIndex;
+        mSelectedIndex = index;
+        if (oldIndex >= 0) {
+            notifyItemChanged(oldIndex, PAYLOAD_SELECTION);
+        }
+        if (index >= 0) {
+            notifyItemChanged(index, PAYLOAD_SELECTION);
+        }
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mItemIds[position];
+    }
+
+    @Override
+    public int getItemCount() {
+        return mCandidates.length;
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(mItemLayout, parent, false);
+        ViewHolder holder = new ViewHolder(view);
+        if (mTextMetricsParams == null) {
+            mTextMetricsParams = holder.mTextView.getTextMetricsParams();
+        }
+        view.setOnClickListener(v -> {
+            int position = holder.getBindingAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) {
+                mListener.onCandidateClick(position);
+            }
+        });
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        String surface = mCandidates[position].surface;
+        PrecomputedText label = mLabels.get(surface);
+        // 属性が違うPrecomputedTextはsetText()で例外になる
+        if (label != null && label.getParams().equals(holder.mTextView.getTextMetricsParams())) {
+            holder.mTextView.setText(label);
+        } else {
+            holder.mTextView.setText(surface);
+        }
+        holder.mTextView.setSelected(position == mSelectedIndex);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+        holder.mTextView.setSelected(position == mSelectedIndex);
+    }
+
+    public static class ViewHolder extends RecyclerView.ViewHolder {
+        private final TextView mTextView;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            mTextView = (TextView) itemView;
+        }
+    }
+}
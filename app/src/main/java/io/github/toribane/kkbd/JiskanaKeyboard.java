@@ -16,16 +16,13 @@
 
 package io.github.toribane.kkbd;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
 import android.util.AttributeSet;
-import android.view.MotionEvent;
 import android.view.ViewGroup;
-import android.widget.ImageView;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 public class JiskanaKeyboard extends KeyboardLayout {
     private final static int COLS = 12;
@@ -58,11 +55,14 @@ public class JiskanaKeyboard extends KeyboardLayout {
             'っ', '\0', '＜', '＞', '（', '）', '！', '？', '、', '。', '・', '～',
     };
 
+    // 文字キーと機能キー、onSizeChanged()で範囲を決める
+    private final KeyGrid mCharacterGrid = new KeyGrid(ROWS, COLS);
+    private final KeyGrid mFunctionGrid = new KeyGrid(1, 9);
+
     @Override
     public void setJapaneseInputMode(boolean mode) {
         super.setJapaneseInputMode(mode);
         drawKeyboard();
-        invalidate();
     }
 
     @Override
@@ -90,8 +90,9 @@ public class JiskanaKeyboard extends KeyboardLayout {
         super(context, attrs);
         setOrientation(VERTICAL);
 
-        mImageView = new ImageView(context);
-        addView(mImageView, new LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, 0, 1.0f));
+        mKeyView = new SoftKeyView(context);
+        mKeyView.setBackgroundColor(mBackgroundColor);
+        addView(mKeyView, new LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, 0, 1.0f));
 
         int id = 0;
         for (int row = 0; row < ROWS; row++) {
@@ -110,77 +111,35 @@ public class JiskanaKeyboard extends KeyboardLayout {
         mSoftKeys.add(mBackspaceKey);
         mSoftKeys.add(mEnterKey);
         mSoftKeys.add(mLanguageKey);
-    }
+        mKeyView.setSoftKeys(mSoftKeys);
 
-    @SuppressLint("ClickableViewAccessibility")
-    @Override
-    public boolean onTouchEvent(@NonNull MotionEvent event) {
-        float x = event.getX();
-        float y = event.getY();
-        SoftKey currentKey = null;  // キーがない場所の場合(外へ出て行った等)
-        for (SoftKey softkey : mSoftKeys) {
-            if (softkey.contains(x, y)) {
-                currentKey = softkey;
-                break;
-            }
+        for (int i = 0; i < ROWS * COLS; i++) {
+            mCharacterGrid.setKey(i / COLS, i % COLS, 1, mSoftKeys.get(i));
         }
-        if (currentKey == null) {
-            mRepeatKey = null;
-            if (mLastKey != null) {
-                mLastKey.setPressed(false);
-            }
-            drawKeyboard();
-            invalidate();
-            return true;
-        }
-
-        switch (event.getAction()) {
-            case MotionEvent.ACTION_DOWN:
-                if (currentKey.isRepeatable()) {
-                    // 押されたキーの初回リピート
-                    mRepeatKey = currentKey;
-                    mRepeatHandler.postDelayed(mRepeatRunnable, mRepeatTimeout);
-                }
-                currentKey.setPressed(true);
-                mLastKey = currentKey;
-                break;
+        mFunctionGrid.setKey(0, 0, 1, mShiftKey);
+        mFunctionGrid.setKey(0, 1, 1, mLanguageKey);
+        mFunctionGrid.setKey(0, 2, 1, mSymbolViewKey);
+        mFunctionGrid.setKey(0, 3, 2, mSpaceKey);
+        mFunctionGrid.setKey(0, 5, 1, mCursorLeftKey);
+        mFunctionGrid.setKey(0, 6, 1, mCursorRightKey);
+        mFunctionGrid.setKey(0, 7, 1, mBackspaceKey);
+        mFunctionGrid.setKey(0, 8, 1, mEnterKey);
+    }
 
-            case MotionEvent.ACTION_MOVE:
-                if (currentKey.equals(mLastKey)) {
-                    return true;    // 同じキー内
-                }
-                if (currentKey.isRepeatable()) {
-                    // 移動した先のキーの初回リピート
-                    mRepeatKey = currentKey;
-                    mRepeatHandler.postDelayed(mRepeatRunnable, mRepeatTimeout);
-                }
-                if (mLastKey != null) {
-                    mLastKey.setPressed(false);
-                }
-                currentKey.setPressed(true);
-                mLastKey = currentKey;
-                break;
-
-            case MotionEvent.ACTION_UP:
-                currentKey.setPressed(false);
-                processSoftKey(currentKey);
-                mRepeatKey = null;
-                mLastKey = null;
-                break;
-
-            default:
-                break;
+    // 行と列から求めるのでキーの数によらない
+    @Nullable
+    @Override
+    public SoftKey findKey(float x, float y) {
+        SoftKey softKey = mCharacterGrid.find(x, y);
+        if (softKey != null) {
+            return softKey;
         }
-        drawKeyboard();
-        invalidate();
-        return true;
+        return mFunctionGrid.find(x, y);
     }
 
-    private void drawKeyboard() {
-        if (mCanvas == null) {
-            return;
-        }
-        mCanvas.drawColor(mBackgroundColor);
+    // キーの表示を今の状態に合わせて、変わったキーだけ描き直す
+    @Override
+    public void drawKeyboard() {
         // 文字キー
         int id = 0;
         for (int row = 0; row < ROWS; row++) {
@@ -190,20 +149,16 @@ public class JiskanaKeyboard extends KeyboardLayout {
                 id++;
             }
         }
-        // SHIFTキー
-        mShiftKey.setDrawable(mShiftNoneDrawable);
+        // SHIFTキー、変わったときだけ描き直されるように1回で設定する
+        Drawable shiftDrawable = mShiftNoneDrawable;
         if (mShiftLockFlag) {
-            mShiftKey.setDrawable(mShiftLockDrawable);
+            shiftDrawable = mShiftLockDrawable;
         }
         if (mShiftSingleFlag) {
-            mShiftKey.setDrawable(mShiftSingleDrawable);
+            shiftDrawable = mShiftSingleDrawable;
         }
-        // draw
-        for (SoftKey softKey : mSoftKeys) {
-            softKey.draw(mCanvas);
-        }
-        mImageView.setImageBitmap(mBitmap);
-        invalidate();
+        mShiftKey.setDrawable(shiftDrawable);
+        super.drawKeyboard();
     }
 
     @Override
@@ -211,9 +166,6 @@ public class JiskanaKeyboard extends KeyboardLayout {
         super.onSizeChanged(w, h, oldw, oldh);
         mWidth = w;
         mHeight = h;
-        mBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-        mCanvas = new Canvas(mBitmap);
-        mImageView.setImageBitmap(mBitmap);
 
         float kx;
         float ky;
@@ -230,9 +182,12 @@ public class JiskanaKeyboard extends KeyboardLayout {
             }
         }
 
+        mCharacterGrid.setBounds(0, 0, mWidth, kh * ROWS);
+
         // 機能キー、9等分してSPACEキーは2個分
         ky = kh * ROWS;
         kw = (float) mWidth / 9;
+        mFunctionGrid.setBounds(0, ky, mWidth, mHeight - ky);
 
         mShiftKey.setPos(kw * 0, ky, kw, kh);
         mLanguageKey.setPos(kw * 1, ky, kw, kh);
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2024 kachaya
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.toribane.kkbd;
+
+import androidx.annotation.Nullable;
+
+/**
+ * 同じ大きさのセルに区切った範囲からキーを探す
+ * 範囲内であればキーの隙間や端の端数でも一番近いセルのキーを返す
+ */
+public class KeyGrid {
+    private final int mRows;
+    private final int mCols;
+    private final SoftKey[] mCells;
+    private float mLeft;
+    private float mTop;
+    private float mWidth;
+    private float mHeight;
+
+    public KeyGrid(int rows, int cols) {
+        mRows = rows;
+        mCols = cols;
+        mCells = new SoftKey[rows * cols];
+    }
+
+    // onSizeChanged()で範囲を決める
+    public void setBounds(float left, float top, float width, float height) {
+        mLeft = left;
+        mTop = top;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * セルにキーを置く
+     *
+     * @param row  行
+     * @param col  列
+     * @param span キーが占める列の数
+     * @param key  キー
+     */
+    public void setKey(int row, int col, int span, SoftKey key) {
+        for (int i = 0; i < span; i++) {
+            mCells[row * mCols + col + i] = key;
+        }
+    }
+
+    public boolean contains(float x, float y) {
+        return x >= mLeft && x < mLeft + mWidth && y >= mTop && y < mTop + mHeight;
+    }
+
+    // 範囲外ならnull
+    @Nullable
+    public SoftKey find(float x, float y) {
+        if (!contains(x, y)) {
+            return null;
+        }
+        int col = Math.min((int) ((x - mLeft) * mCols / mWidth), mCols - 1);
+        int row = Math.min((int) ((y - mTop) * mRows / mHeight), mRows - 1);
+        return mCells[row * mCols + col];
+    }
+}
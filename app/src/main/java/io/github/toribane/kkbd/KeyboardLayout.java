@@ -16,16 +16,15 @@
 
 package io.github.toribane.kkbd;
 
+import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
 import android.graphics.drawable.Drawable;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.AttributeSet;
-import android.widget.ImageView;
+import android.view.MotionEvent;
 import android.widget.LinearLayout;
 
 import androidx.annotation.NonNull;
@@ -35,7 +34,9 @@ import androidx.preference.PreferenceManager;
 
 import java.util.ArrayList;
 
-public class KeyboardLayout extends LinearLayout implements SharedPreferences.OnSharedPreferenceChangeListener {
+public class KeyboardLayout extends LinearLayout
+        implements SharedPreferences.OnSharedPreferenceChangeListener, MemoryManager.Client,
+        PointerTracker.Listener<SoftKey> {
 
     //
     public final static int SOFTKEY_ID_SPACE = -1;
@@ -61,7 +62,6 @@ public class KeyboardLayout extends LinearLayout implements SharedPreferences.On
     public SoftKey mCursorRightKey;
     public SoftKey mEnterKey;
     public SoftKey mKeyboardViewKey;
-    public SoftKey mLastKey;
     public SoftKey mRepeatKey;
     public SoftKey mShiftKey;
     public SoftKey mSpaceKey;
@@ -71,9 +71,8 @@ public class KeyboardLayout extends LinearLayout implements SharedPreferences.On
     public SoftKey mSymbolKigouKey;
 
     public ArrayList<SoftKey> mSoftKeys;
+    private final PointerTracker<SoftKey> mPointerTracker = new PointerTracker<>(this);
 
-    public Bitmap mBitmap;
-    public Canvas mCanvas;
     public Drawable mShiftLockDrawable;
     public Drawable mShiftNoneDrawable;
     public Drawable mShiftSingleDrawable;
@@ -81,7 +80,7 @@ public class KeyboardLayout extends LinearLayout implements SharedPreferences.On
     public Drawable mLangEnDrawable;
     //
     public Handler mRepeatHandler;
-    public ImageView mImageView;
+    public SoftKeyView mKeyView;
 
     public int mBackgroundColor;
     public int mCharacterKeyBackgroundColor;
@@ -103,6 +102,7 @@ public class KeyboardLayout extends LinearLayout implements SharedPreferences.On
             if (mRepeatKey == null) {
                 return;
             }
+            mKeyboardService.setKeyRepeating(true);
             processSoftKey(mRepeatKey);
             mRepeatHandler.postDelayed(this, mRepeatDelay);
         }
@@ -198,6 +198,14 @@ public class KeyboardLayout extends LinearLayout implements SharedPreferences.On
         }
     }
 
+    // 表示していなければキーの描画内容を手放す
+    @Override
+    public void onTrim(int level) {
+        if (level >= MemoryManager.TRIM_RELEASE && mKeyView != null && !isShown()) {
+            mKeyView.discardKeys();
+        }
+    }
+
     public void setJapaneseInputMode(boolean mode) {
         mLanguageJapaneseFlag = mode;
         if (mLanguageJapaneseFlag) {
@@ -207,6 +215,100 @@ public class KeyboardLayout extends LinearLayout implements SharedPreferences.On
         }
     }
 
+    /*
+     * 複数の指で押したキーを押した順に処理する
+     */
+    @SuppressLint("ClickableViewAccessibility")
+    @Override
+    public boolean onTouchEvent(@NonNull MotionEvent event) {
+        int index = event.getActionIndex();
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+            case MotionEvent.ACTION_POINTER_DOWN:
+                mPointerTracker.onPointerDown(event.getPointerId(index), findKey(event.getX(index), event.getY(index)));
+                break;
+            case MotionEvent.ACTION_MOVE:
+                for (int i = 0; i < event.getPointerCount(); i++) {
+                    mPointerTracker.onPointerMove(event.getPointerId(i), findKey(event.getX(i), event.getY(i)));
+                }
+                break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_POINTER_UP:
+                mPointerTracker.onPointerUp(event.getPointerId(index));
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                mPointerTracker.cancel();
+                break;
+            default:
+                break;
+        }
+        drawKeyboard();
+        return true;
+    }
+
+    // 押したキーを表示してリピートを始める
+    @Override
+    public void onKeyPress(SoftKey softKey) {
+        softKey.setPressed(true);
+        startRepeat(softKey);
+    }
+
+    @Override
+    public void onKeyRelease(SoftKey softKey) {
+        releaseKey(softKey);
+    }
+
+    @Override
+    public void onKeyCommit(SoftKey softKey) {
+        // リピート中にまとめた変換はこの処理の後で1回だけ行う
+        processSoftKey(softKey);
+        if (softKey == mRepeatKey) {
+            stopRepeat();
+        }
+    }
+
+    private void releaseKey(@Nullable SoftKey softKey) {
+        if (softKey == null) {
+            return;
+        }
+        softKey.setPressed(false);
+        if (softKey == mRepeatKey) {
+            stopRepeat();
+        }
+    }
+
+    // リピートするのは最後に押したキーだけ
+    private void startRepeat(SoftKey softKey) {
+        if (!softKey.isRepeatable()) {
+            return;
+        }
+        stopRepeat();
+        mRepeatKey = softKey;
+        mRepeatHandler.postDelayed(mRepeatRunnable, mRepeatTimeout);
+    }
+
+    private void stopRepeat() {
+        mRepeatHandler.removeCallbacks(mRepeatRunnable);
+        mRepeatKey = null;
+        mKeyboardService.setKeyRepeating(false);
+    }
+
+    // 変わったキーだけ描き直す
+    public void drawKeyboard() {
+        mKeyView.invalidateDirtyKeys();
+    }
+
+    // 座標にあるキー、なければnull
+    @Nullable
+    public SoftKey findKey(float x, float y) {
+        for (SoftKey softKey : mSoftKeys) {
+            if (softKey.contains(x, y)) {
+                return softKey;
+            }
+        }
+        return null;
+    }
+
     public char getKeyChar(int id) {
         return '\0';
     }
@@ -15,64 +15,233 @@
  */
 package io.github.toribane.kkbd;
 
-import android.content.Context;
 import android.content.SharedPreferences;
 import android.inputmethodservice.InputMethodService;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.text.InputType;
+import android.text.PrecomputedText;
 import android.text.SpannableString;
 import android.text.Spanned;
 import android.text.style.BackgroundColorSpan;
 import android.text.style.UnderlineSpan;
-import android.view.ContextThemeWrapper;
+import android.view.Choreographer;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewStub;
 import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputConnection;
 import android.widget.FrameLayout;
 import android.widget.TextView;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.core.content.ContextCompat;
 import androidx.preference.PreferenceManager;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
-public class KeyboardService extends InputMethodService implements SharedPreferences.OnSharedPreferenceChangeListener {
+import com.google.android.flexbox.FlexDirection;
+import com.google.android.flexbox.FlexWrap;
+import com.google.android.flexbox.FlexboxLayoutManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class KeyboardService extends InputMethodService
+        implements SharedPreferences.OnSharedPreferenceChangeListener, MemoryManager.Client {
+
+    public static final String KEY_TRACE_FILE_NAME = "key_trace.tsv";
+    // 候補が減ってから増えたときに作り直さずに済むように残しておく候補ビューの数
+    private static final int CANDIDATE_VIEW_POOL_SIZE = 32;
+    // 候補の続きを取り出す数、候補一覧を開いたときは多めに取り出す
+    private static final int CANDIDATE_PAGE_SIZE = 20;
+    private static final int CANDIDATE_PANEL_PAGE_SIZE = 100;
+    private static final int CANDIDATE_LOAD_MORE_THRESHOLD = 5;  // 末尾からこの数以内が見えたら続きを取り出す
+    private static final int MAX_CANDIDATE_COUNT = 500;
 
     // キーボード
     private ViewGroup mKeyboardLayout;
-    private View mCandidateView;
-    private ViewGroup mCandidateLayout;
+    private RecyclerView mCandidateView;
+    private CandidateAdapter mCandidateAdapter;
+    // 候補一覧、開いている間はキーボードの代わりに表示する
+    private RecyclerView mCandidatePanel;
+    private CandidateAdapter mCandidatePanelAdapter;
+    private TextView mCandidateExpandView;
     private KeyboardLayout mJiskanaKeyboard;
-    // シンボル
+    // シンボル、最初にhandleSymbol()が呼ばれるまで作らない
+    private ViewStub mSymbolKeyboardStub;
     private KeyboardLayout mSymbolKeyboard;
+    private SymbolData mSymbolData;
     //
     private Dictionary mDictionary;
+    private LatencyRecorder mLatencyRecorder;
+    // onTrimMemory()で縮小するもの
+    private final MemoryManager mMemoryManager = new MemoryManager();
     //
     private StringBuilder mInputText;
     private int mConvertLength;
     private int mCandidateIndex;
     private Candidate[] mCandidates;
+    // 変換スレッドで計測した候補の表記
+    private Map<String, PrecomputedText> mCandidateLabels;
+    // 表示中の候補は前の入力のもので選べない
+    private boolean mCandidatesStale;
+    // 表示している変換候補の続き、必要になるまで作らない
+    // 変換スレッドだけで使い、Tailは続きを足した候補一覧
+    private CandidateIterator mCandidateIterator;
+    private Candidate[] mCandidateIteratorTail;
+    // 変換スレッドで続きを取り出している間に、追加で要求された数と次の候補を選ぶか
+    private Future<?> mLoadMoreFuture;
+    private int mLoadMoreCount;
+    private boolean mSelectNextOnLoad;
+    // 選択中の候補を確定した後の予測候補を先に作っておく
+    private ExecutorService mPrefetchExecutor;
+    private Candidate mPrefetchCandidate;
+    private Future<Candidate[]> mPrefetchFuture;
+    // シンボルの一覧など急がない読み込み、予測候補の先読みを待たせないように優先度の低い別スレッドで行う
+    private ExecutorService mPreloadExecutor;
+    // 前回確定した候補を先に表示してから残りの候補を作る
+    private Handler mHandler;
+    private boolean mConversionPending;
+    private final Runnable mConversionRunnable = this::startConversion;
+    // 変換は変換スレッドで候補の表記の計測まで行い、メインスレッドは結果を表示するだけ
+    private ExecutorService mConversionExecutor;
+    private Future<ConversionResult> mConversionFuture;
+    private int mConversionGeneration;
+    // 入力中テキストと候補の表示は次のフレームでまとめて更新する
+    private Choreographer mChoreographer;
+    private boolean mFrameScheduled;
+    private boolean mComposingDirty;
+    private boolean mCandidatesDirty;
+    private int mComposingColor;
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFrameScheduled = false;
+            flushUiUpdates();
+        }
+    };
+    // キーリピート中は入力テキストだけ更新して、変換はリピートが終わってから1回だけ行う
+    private boolean mKeyRepeating;
     // 入力モード、onStartInputView()で決まる
     private boolean mInputJapanese; // 日本語入力モード
     private boolean mInputPassword; // 入力フィールドはパスワード
+    // 長い入力の変わらなくなった先頭部分を自動で確定する
+    private boolean mStreamingConversion;
+    // 文字を入力した後の変換で先頭部分の確定を試す、変換が終わるまで残す
+    private boolean mStreamingPending;
+    // キー入力の記録、記録しないときはnull
+    private KeyTrace.Writer mKeyTrace;
 
     @Override
     public void onCreate() {
         super.onCreate();
-        mDictionary = new Dictionary(this);
+        mDictionary = Dictionary.getInstance(this);
+        mLatencyRecorder = mDictionary.getLatencyRecorder();
         mInputText = new StringBuilder();
+        mPrefetchExecutor = Executors.newSingleThreadExecutor();
+        mPreloadExecutor = Executors.newSingleThreadExecutor(runnable -> new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runnable.run();
+        }));
+        mConversionExecutor = Executors.newSingleThreadExecutor();
+        mHandler = new Handler(Looper.getMainLooper());
+        mChoreographer = Choreographer.getInstance();
+        mComposingColor = ContextCompat.getColor(this, R.color.select_bg);
+        mSymbolData = new SymbolData(getAssets());
+        mMemoryManager.register(mDictionary);
+        mMemoryManager.register(mSymbolData);
+        mMemoryManager.register(this);
+    }
+
+    @Override
+    public void onDestroy() {
+        mMemoryManager.unregister(mDictionary);
+        mMemoryManager.unregister(mSymbolData);
+        cancelPrefetchPrediction();
+        mPrefetchExecutor.shutdown();
+        mPreloadExecutor.shutdown();
+        cancelConversion();
+        mConversionExecutor.shutdown();
+        super.onDestroy();
+    }
+
+    // システムからの縮小要求を3段階にまとめる
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            mMemoryManager.trim(MemoryManager.TRIM_RELEASE);
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW && level != TRIM_MEMORY_UI_HIDDEN) {
+            mMemoryManager.trim(MemoryManager.TRIM_CLEAR);
+        } else {
+            mMemoryManager.trim(MemoryManager.TRIM_SHRINK);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        mMemoryManager.trim(MemoryManager.TRIM_RELEASE);
+    }
+
+    // 先読みした予測候補と候補の続きは作り直せる
+    @Override
+    public void onTrim(int level) {
+        if (level >= MemoryManager.TRIM_CLEAR) {
+            cancelPrefetchPrediction();
+            if (!mConversionExecutor.isShutdown()) {
+                mConversionExecutor.execute(this::releaseCandidateIterator);
+            }
+        }
     }
 
     @Override
     public View onCreateInputView() {
         FrameLayout layout = (FrameLayout) LayoutInflater.from(this).inflate(R.layout.input_layout, null);
 
+        // 前の入力ビューのキーボードは使わなくなる
+        if (mJiskanaKeyboard != null) {
+            mMemoryManager.unregister(mJiskanaKeyboard);
+        }
+        if (mSymbolKeyboard != null) {
+            mMemoryManager.unregister(mSymbolKeyboard);
+        }
         mKeyboardLayout = layout.findViewById(R.id.keyboard_layout);
-        mSymbolKeyboard = layout.findViewById(R.id.symbol_keyboard);
+        mSymbolKeyboardStub = layout.findViewById(R.id.symbol_keyboard_stub);
+        mSymbolKeyboard = null;
         mJiskanaKeyboard = layout.findViewById(R.id.jiskana_keyboard);
+        mMemoryManager.register(mJiskanaKeyboard);
         mCandidateView = layout.findViewById(R.id.candidate_view);
-        mCandidateLayout = layout.findViewById(R.id.candidate_layout);
+        mCandidateView.setLayoutManager(new LinearLayoutManager(this, RecyclerView.HORIZONTAL, false));
+        mCandidateView.setItemAnimator(null);
+        mCandidateView.getRecycledViewPool().setMaxRecycledViews(0, CANDIDATE_VIEW_POOL_SIZE);
+        mCandidateAdapter = new CandidateAdapter(this::onCandidateClick, R.layout.viewholder_candidate);
+        mCandidateView.setAdapter(mCandidateAdapter);
+        mCandidateView.addOnScrollListener(new LoadMoreListener(CANDIDATE_PAGE_SIZE));
+
+        FlexboxLayoutManager flexboxLayoutManager = new FlexboxLayoutManager(this);
+        flexboxLayoutManager.setFlexWrap(FlexWrap.WRAP);
+        flexboxLayoutManager.setFlexDirection(FlexDirection.ROW);
+        mCandidatePanel = layout.findViewById(R.id.candidate_panel);
+        mCandidatePanel.setLayoutManager(flexboxLayoutManager);
+        mCandidatePanel.setItemAnimator(null);
+        mCandidatePanelAdapter = new CandidateAdapter(this::onCandidateClick, R.layout.viewholder_candidate_panel);
+        mCandidatePanel.setAdapter(mCandidatePanelAdapter);
+        mCandidatePanel.addOnScrollListener(new LoadMoreListener(CANDIDATE_PANEL_PAGE_SIZE));
+        mCandidateExpandView = layout.findViewById(R.id.candidate_expand);
+        mCandidateExpandView.setOnClickListener(v -> setCandidatePanelVisible(!isCandidatePanelVisible()));
 
         return layout;
     }
@@ -93,6 +262,9 @@ public class KeyboardService extends InputMethodService implements SharedPrefere
                         mInputJapanese = true;
                 }
                 break;
+            case "streaming_conversion":
+                mStreamingConversion = sharedPreferences.getBoolean(key, false);
+                break;
             default:
                 break;
         }
@@ -111,6 +283,7 @@ public class KeyboardService extends InputMethodService implements SharedPrefere
             default:
                 mInputJapanese = true;
         }
+        mStreamingConversion = sharedPreferences.getBoolean("streaming_conversion", false);
         mInputPassword = false;
         switch (editorInfo.inputType & InputType.TYPE_MASK_CLASS) {
             case InputType.TYPE_CLASS_NUMBER:
@@ -137,31 +310,283 @@ public class KeyboardService extends InputMethodService implements SharedPrefere
         }
         mJiskanaKeyboard.setJapaneseInputMode(mInputJapanese);
 
+        // パスワードと学習しないよう指定された入力フィールドは記録しない
+        closeKeyTrace();
+        if (sharedPreferences.getBoolean("key_trace", false) && !mInputPassword && canTraceKey(editorInfo)) {
+            try {
+                mKeyTrace = new KeyTrace.Writer(new File(getFilesDir(), KEY_TRACE_FILE_NAME));
+                mKeyTrace.write(KeyTrace.START, "streaming=" + (mStreamingConversion ? 1 : 0));
+            } catch (IOException ignored) {
+            }
+        }
+
         mKeyboardLayout.setVisibility(View.VISIBLE);
-        mSymbolKeyboard.setVisibility(View.INVISIBLE);
+        if (mSymbolKeyboard != null) {
+            mSymbolKeyboard.setVisibility(View.INVISIBLE);
+        }
 
         resetInput();
+        // キーボードを表示してからシンボルの一覧を読み込んでおく
+        mHandler.post(() -> mSymbolData.preload(mPreloadExecutor));
+    }
+
+    /**
+     * キー入力を記録してよい入力フィールドか
+     *
+     * @param editorInfo 入力フィールドの情報
+     * @return パスワードや学習しない指定がなければtrue
+     */
+    private static boolean canTraceKey(EditorInfo editorInfo) {
+        if ((editorInfo.imeOptions & EditorInfo.IME_FLAG_NO_PERSONALIZED_LEARNING) != 0) {
+            return false;
+        }
+        int variation = editorInfo.inputType & InputType.TYPE_MASK_VARIATION;
+        switch (editorInfo.inputType & InputType.TYPE_MASK_CLASS) {
+            case InputType.TYPE_CLASS_NUMBER:
+                return variation != InputType.TYPE_NUMBER_VARIATION_PASSWORD;
+            case InputType.TYPE_CLASS_TEXT:
+                return variation != InputType.TYPE_TEXT_VARIATION_PASSWORD
+                        && variation != InputType.TYPE_TEXT_VARIATION_VISIBLE_PASSWORD
+                        && variation != InputType.TYPE_TEXT_VARIATION_WEB_PASSWORD;
+            default:
+                return true;
+        }
+    }
+
+    @Override
+    public void onFinishInput() {
+        closeKeyTrace();
+        super.onFinishInput();
+    }
+
+    private void closeKeyTrace() {
+        if (mKeyTrace != null) {
+            mKeyTrace.close();
+            mKeyTrace = null;
+        }
+    }
+
+    private void traceKey(String type, String arg) {
+        if (mKeyTrace != null) {
+            mKeyTrace.write(type, arg);
+        }
     }
 
     private void resetInput() {
+        cancelConversion();
+        mStreamingPending = false;
+        mComposingDirty = false;
         mInputText.setLength(0);
         mConvertLength = 0;
-        mCandidateLayout.removeAllViewsInLayout();
-        mCandidateIndex = -1;
+        mCandidates = null;
+        setCandidateText();
+        setCandidatePanelVisible(false);
         icCommitText("");
     }
 
+    // 入力テキストと区切り位置から候補を作り直す
+    private void updateConversion() {
+        updateConversion(false);
+    }
+
+    /**
+     * 入力テキストと区切り位置から候補を作り直す
+     *
+     * @param streaming 変わらなくなった先頭部分を確定してから変換する
+     */
+    private void updateConversion(boolean streaming) {
+        icSetComposingText();
+        cancelConversion();
+        mStreamingPending = streaming;
+        // 新しい候補ができるまで前の候補の表示は残すが選べなくする
+        mCandidateIndex = -1;
+        mCandidatesStale = true;
+        if (mKeyRepeating) {
+            mConversionPending = true;
+            return;
+        }
+        Candidate recent = null;
+        if (mConvertLength == mInputText.length()) {
+            recent = mDictionary.findRecentCandidate(mInputText);
+        }
+        if (recent == null) {
+            startConversion();
+            return;
+        }
+        // 残りの候補作成はこの候補を表示したフレームの後で動く
+        mCandidates = new Candidate[]{recent};
+        setCandidateText();
+        mConversionPending = true;
+    }
+
+    // 変換スレッドで先頭部分の確定と候補を作り始める、結果はonConversionDone()で受け取る
+    private void startConversion() {
+        cancelConversion();
+        int generation = mConversionGeneration;
+        String reading = mInputText.toString();
+        int splitPos = mConvertLength;
+        boolean streaming = mStreamingPending;
+        PrecomputedText.Params params = mCandidateAdapter.getTextMetricsParams();
+        mConversionFuture = mConversionExecutor.submit(() -> {
+            Candidate prefix = null;
+            Candidate[] candidates;
+            Map<String, PrecomputedText> labels = null;
+            // 前の候補一覧の続きはもう取り出さない
+            releaseCandidateIterator();
+            try {
+                // 確定する先頭部分を除いた残りを変換する
+                String rest = reading;
+                int restSplitPos = splitPos;
+                if (streaming) {
+                    prefix = mDictionary.buildStreamingCandidate(reading);
+                    if (prefix != null) {
+                        rest = reading.substring(prefix.reading.length());
+                        restSplitPos -= prefix.reading.length();
+                    }
+                }
+                candidates = mDictionary.buildConversionCandidate(rest, restSplitPos);
+                if (params != null) {
+                    labels = CandidateAdapter.precomputeLabels(candidates, params);
+                }
+            } catch (RuntimeException e) {
+                // メインスレッドで変換していたときと同じように扱う
+                mHandler.post(() -> {
+                    throw e;
+                });
+                return null;
+            }
+            ConversionResult result = new ConversionResult(generation, prefix, candidates, labels);
+            mHandler.post(() -> onConversionDone(result));
+            return result;
+        });
+    }
+
+    // awaitConversion()で先に受け取っていれば何もしない
+    private void onConversionDone(ConversionResult result) {
+        if (result.generation != mConversionGeneration || mConversionFuture == null) {
+            return; // 入力が変わった
+        }
+        mConversionFuture = null;
+        mStreamingPending = false;
+        if (result.prefix != null) {
+            commitStablePrefix(result.prefix);
+        }
+        mCandidates = result.candidates;
+        setCandidateText(result.labels);
+    }
+
+    // 保留中と変換スレッドで作成中の候補を捨てる
+    private void cancelConversion() {
+        mHandler.removeCallbacks(mConversionRunnable);
+        mConversionPending = false;
+        if (mConversionFuture != null) {
+            // jdbmのファイルアクセス中に割り込まないようにinterruptはしない
+            mConversionFuture.cancel(false);
+            mConversionFuture = null;
+        }
+        if (mLoadMoreFuture != null) {
+            mLoadMoreFuture.cancel(false);
+            mLoadMoreFuture = null;
+        }
+        mLoadMoreCount = 0;
+        mSelectNextOnLoad = false;
+        mConversionGeneration++;
+    }
+
+    // 候補を作成中か
+    private boolean isConverting() {
+        return mConversionPending || mConversionFuture != null;
+    }
+
+    /**
+     * キーリピートの開始と終了、終了したら保留していた変換を行う
+     *
+     * @param repeating リピート中ならtrue
+     */
+    public void setKeyRepeating(boolean repeating) {
+        if (mKeyRepeating == repeating) {
+            return;
+        }
+        mKeyRepeating = repeating;
+        if (!repeating && mConversionPending) {
+            startConversion();
+        }
+    }
+
+    /**
+     * 候補を選ぶ前に作成中の候補を受け取る
+     * 変換スレッドで作っている結果を待つだけで、このスレッドでは変換しない
+     */
+    private void awaitConversion() {
+        if (mConversionPending) {
+            startConversion();
+        }
+        Future<ConversionResult> future = mConversionFuture;
+        if (future == null) {
+            return;
+        }
+        ConversionResult result;
+        try {
+            result = future.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (result != null) {
+            onConversionDone(result);
+        }
+    }
+
+    private void scheduleUiUpdate() {
+        if (!mFrameScheduled) {
+            mFrameScheduled = true;
+            mChoreographer.postFrameCallback(mFrameCallback);
+        }
+    }
+
+    // 保留している表示の更新を行う、フレームを待たずに呼んでもよい
+    private void flushUiUpdates() {
+        if (mFrameScheduled) {
+            mFrameScheduled = false;
+            mChoreographer.removeFrameCallback(mFrameCallback);
+        }
+        if (mComposingDirty) {
+            mComposingDirty = false;
+            applyComposingText();
+        }
+        if (mCandidatesDirty) {
+            mCandidatesDirty = false;
+            showCandidateText();
+        }
+        // 先に出した候補が表示されてから残りの候補を作る
+        if (mConversionPending && !mKeyRepeating) {
+            mHandler.removeCallbacks(mConversionRunnable);
+            mHandler.post(mConversionRunnable);
+        }
+    }
+
+    // 次のフレームで入力中テキストを更新する
     private void icSetComposingText() {
+        mComposingDirty = true;
+        scheduleUiUpdate();
+    }
+
+    private void applyComposingText() {
         InputConnection ic = getCurrentInputConnection();
         if (ic == null) {
             return;
         }
+        long start = mLatencyRecorder.begin(LatencyRecorder.PHASE_COMPOSING);
         SpannableString ss = new SpannableString(mInputText);
-        int color = ContextCompat.getColor(this, R.color.select_bg);
-        ss.setSpan(new BackgroundColorSpan(color), 0, mConvertLength, Spanned.SPAN_COMPOSING);
+        ss.setSpan(new BackgroundColorSpan(mComposingColor), 0, mConvertLength, Spanned.SPAN_COMPOSING);
         ss.setSpan(new UnderlineSpan(), 0, ss.length(), Spanned.SPAN_COMPOSING);
 
+        ic.beginBatchEdit();
         ic.setComposingText(ss, 1);
+        ic.endBatchEdit();
+        mLatencyRecorder.end(LatencyRecorder.PHASE_COMPOSING, mInputText.length(), start);
     }
 
     private void icCommitText(CharSequence cs) {
@@ -179,14 +604,66 @@ public class KeyboardService extends InputMethodService implements SharedPrefere
 
     private void commitCandidateText() {
         Candidate candidate = mCandidates[mCandidateIndex];
+        traceKey(KeyTrace.COMMIT, mCandidateIndex + ":" + candidate.surface);
+        Candidate[] predictions = takePrefetchPrediction(candidate);
         mDictionary.addLearning(candidate);
         icCommitText(candidate.surface);
-        mCandidates = mDictionary.buildPredictionCandidate(candidate);
+        if (predictions == null) {
+            predictions = mDictionary.buildPredictionCandidate(candidate);
+        }
         resetInput();
+        mCandidates = predictions;
         setCandidateText();
     }
 
+    // バックグラウンドで予測候補を作り始める
+    private void prefetchPrediction(Candidate candidate) {
+        if (candidate == mPrefetchCandidate) {
+            return;
+        }
+        cancelPrefetchPrediction();
+        if (candidate.words == null) {
+            return;
+        }
+        mPrefetchCandidate = candidate;
+        mPrefetchFuture = mPrefetchExecutor.submit(() -> mDictionary.buildPredictionCandidate(candidate));
+    }
+
+    // 選択が変わったら先読みした予測候補は捨てる
+    private void cancelPrefetchPrediction() {
+        if (mPrefetchFuture != null) {
+            // jdbmのファイルアクセス中に割り込まないようにinterruptはしない
+            mPrefetchFuture.cancel(false);
+        }
+        mPrefetchFuture = null;
+        mPrefetchCandidate = null;
+    }
+
+    // 先読みが終わっていれば予測候補を返す、まだならnull
+    @Nullable
+    private Candidate[] takePrefetchPrediction(Candidate candidate) {
+        Candidate[] predictions = null;
+        if (candidate == mPrefetchCandidate && mPrefetchFuture.isDone() && !mPrefetchFuture.isCancelled()) {
+            try {
+                predictions = mPrefetchFuture.get();
+            } catch (ExecutionException | InterruptedException ignored) {
+            }
+        }
+        cancelPrefetchPrediction();
+        // 確定する候補の中に最後の語句と同じものがあると学習で予測辞書が変わるので作り直す
+        if (predictions != null) {
+            Word lastWord = candidate.words[candidate.words.length - 1];
+            for (int i = 0; i < candidate.words.length - 1; i++) {
+                if (candidate.words[i].equals(lastWord)) {
+                    return null;
+                }
+            }
+        }
+        return predictions;
+    }
+
     public void handleString(String s) {
+        traceKey(KeyTrace.STRING, s);
         if (mCandidateIndex >= 0) {
             // 候補選択中なら確定する
             commitCandidateText();
@@ -196,11 +673,13 @@ public class KeyboardService extends InputMethodService implements SharedPrefere
     }
 
     public void handleCharacter(char c) {
+        traceKey(KeyTrace.CHARACTER, String.valueOf(c));
         if (mInputPassword) {
             String s = String.valueOf(c);
             icCommitText(s);
             return;
         }
+        long start = mLatencyRecorder.begin(LatencyRecorder.PHASE_KEY);
         if (mCandidateIndex >= 0) {
             // 候補選択中なら確定する
             commitCandidateText();
@@ -224,12 +703,32 @@ public class KeyboardService extends InputMethodService implements SharedPrefere
         }
         mInputText.append(c);
         mConvertLength = mInputText.length();
-        icSetComposingText();
-        mCandidates = mDictionary.buildConversionCandidate(mInputText, mConvertLength);
-        setCandidateText();
+        updateConversion(mStreamingConversion);
+        mLatencyRecorder.end(LatencyRecorder.PHASE_KEY, mInputText.length(), start);
+    }
+
+    // 変換結果が変わらなくなった先頭部分を確定して、変換する範囲を短く保つ
+    private void commitStablePrefix(Candidate prefix) {
+        int len = prefix.reading.length();
+        traceKey(KeyTrace.PREFIX, len + ":" + prefix.surface);
+        mDictionary.addLearning(prefix);
+        mInputText.delete(0, len);
+        mConvertLength -= len;
+        // 確定と残りの入力中テキストを1回の編集で更新する
+        InputConnection ic = getCurrentInputConnection();
+        if (ic != null) {
+            ic.beginBatchEdit();
+        }
+        icCommitText(prefix.surface);
+        mComposingDirty = false;
+        applyComposingText();
+        if (ic != null) {
+            ic.endBatchEdit();
+        }
     }
 
     public void handleBackspace() {
+        traceKey(KeyTrace.BACKSPACE, "");
         if (mInputText.length() == 0) {
             sendDownUpKeyEvents(KeyEvent.KEYCODE_DEL);
             return;
@@ -246,13 +745,12 @@ public class KeyboardService extends InputMethodService implements SharedPrefere
             resetInput();
         } else {
             mConvertLength = mInputText.length();
-            icSetComposingText();
-            mCandidates = mDictionary.buildConversionCandidate(mInputText, mConvertLength);
-            setCandidateText();
+            updateConversion();
         }
     }
 
     public void handleEnter() {
+        traceKey(KeyTrace.ENTER, "");
         if (mInputText.length() == 0) {
             sendDownUpKeyEvents(KeyEvent.KEYCODE_ENTER);
             return;
@@ -269,15 +767,31 @@ public class KeyboardService extends InputMethodService implements SharedPrefere
     }
 
     public void handleSpace() {
+        traceKey(KeyTrace.SPACE, "");
         if (mInputText.length() == 0) {
             sendDownUpKeyEvents(KeyEvent.KEYCODE_SPACE);
             return;
         }
-        mCandidateIndex = (mCandidateIndex + 1) % mCandidateLayout.getChildCount();
+        awaitConversion();
+        flushUiUpdates();
+        int count = mCandidateAdapter.getItemCount();
+        if (count == 0) {
+            return;
+        }
+        // 最後の候補の次は続きを取り出して届いたら選ぶ、なければ先頭に戻る
+        int index = mCandidateIndex + 1;
+        if (index >= count) {
+            if (loadMoreCandidates(CANDIDATE_PAGE_SIZE, true)) {
+                return;
+            }
+            index = 0;
+        }
+        mCandidateIndex = index;
         selectCandidate();
     }
 
     public void handleCursorLeft() {
+        traceKey(KeyTrace.CURSOR_LEFT, "");
         if (mInputText.length() == 0) {
             sendDownUpKeyEvents(KeyEvent.KEYCODE_DPAD_LEFT);
             return;
@@ -286,12 +800,11 @@ public class KeyboardService extends InputMethodService implements SharedPrefere
         if (mConvertLength < 1) {
             mConvertLength = 1;
         }
-        icSetComposingText();
-        mCandidates = mDictionary.buildConversionCandidate(mInputText, mConvertLength);
-        setCandidateText();
+        updateConversion();
     }
 
     public void handleCursorRight() {
+        traceKey(KeyTrace.CURSOR_RIGHT, "");
         if (mInputText.length() == 0) {
             sendDownUpKeyEvents(KeyEvent.KEYCODE_DPAD_RIGHT);
             return;
@@ -300,9 +813,7 @@ public class KeyboardService extends InputMethodService implements SharedPrefere
         if (mConvertLength > mInputText.length()) {
             mConvertLength = mInputText.length();
         }
-        icSetComposingText();
-        mCandidates = mDictionary.buildConversionCandidate(mInputText, mConvertLength);
-        setCandidateText();
+        updateConversion();
     }
 
     public void handleCursorUp() {
@@ -321,6 +832,7 @@ public class KeyboardService extends InputMethodService implements SharedPrefere
      * シンボルキーボードに切り替え
      */
     public void handleSymbol() {
+        traceKey(KeyTrace.SYMBOL, "");
         if (mCandidateIndex >= 0) {
             // 候補選択中なら確定する
             commitCandidateText();
@@ -328,9 +840,10 @@ public class KeyboardService extends InputMethodService implements SharedPrefere
         if (mInputText.length() > 0) {
             commitInputText();
         }
+        setCandidatePanelVisible(false);
 
         mKeyboardLayout.setVisibility(View.INVISIBLE);
-        mSymbolKeyboard.setVisibility(View.VISIBLE);
+        getSymbolKeyboard().setVisibility(View.VISIBLE);
     }
 
     /**
@@ -341,54 +854,244 @@ public class KeyboardService extends InputMethodService implements SharedPrefere
             commitInputText();
         }
         mKeyboardLayout.setVisibility(View.VISIBLE);
-        mSymbolKeyboard.setVisibility(View.INVISIBLE);
+        if (mSymbolKeyboard != null) {
+            mSymbolKeyboard.setVisibility(View.INVISIBLE);
+        }
     }
 
-    private void onClickCandidateTextListener(View view) {
-        mCandidateIndex = mCandidateLayout.indexOfChild(view);
+    // 最初に使うときにシンボルキーボードを作る
+    private KeyboardLayout getSymbolKeyboard() {
+        if (mSymbolKeyboard == null) {
+            mSymbolKeyboard = (KeyboardLayout) mSymbolKeyboardStub.inflate();
+            mSymbolKeyboardStub = null;
+            mMemoryManager.register(mSymbolKeyboard);
+        }
+        return mSymbolKeyboard;
+    }
+
+    public SymbolData getSymbolData() {
+        return mSymbolData;
+    }
+
+    private void onCandidateClick(int position) {
+        if (mCandidatesDirty || mCandidatesStale) {
+            return; // 表示が古い
+        }
+        mCandidateIndex = position;
         commitCandidateText();
     }
 
     /**
-     * 候補ビューに候補一覧を表示する
+     * 次のフレームで候補ビューに候補一覧を表示する
      */
     private void setCandidateText() {
+        setCandidateText(null);
+    }
+
+    /**
+     * 次のフレームで候補ビューに候補一覧を表示する
+     *
+     * @param labels 変換スレッドで計測した表記、なければnull
+     */
+    private void setCandidateText(@Nullable Map<String, PrecomputedText> labels) {
         mCandidateIndex = -1;
-        mCandidateLayout.removeAllViewsInLayout();
-        mCandidateView.scrollTo(0, 0);
-        if (mCandidates == null) {
-            return;
-        }
-        int style = R.style.CandidateText;
-        Context context = new ContextThemeWrapper(this, style);
-        for (Candidate candidate : mCandidates) {
-            TextView view = new TextView(context, null, style);
-            view.setText(candidate.surface);    // 表示用テキスト
-            view.setOnClickListener(this::onClickCandidateTextListener);
-            mCandidateLayout.addView(view);
+        mCandidateLabels = labels;
+        mCandidatesStale = false;
+        mCandidatesDirty = true;
+        scheduleUiUpdate();
+    }
+
+    // 前の候補一覧との差分だけ表示を更新する
+    private void showCandidateText() {
+        long start = mLatencyRecorder.begin(LatencyRecorder.PHASE_CANDIDATE);
+        mCandidateAdapter.setCandidates(mCandidates, mCandidateLabels);
+        mCandidateView.scrollToPosition(0);
+        if (isCandidatePanelVisible()) {
+            mCandidatePanelAdapter.setCandidates(mCandidates, mCandidateLabels);
+            mCandidatePanel.scrollToPosition(0);
         }
+        mLatencyRecorder.end(LatencyRecorder.PHASE_CANDIDATE, mInputText.length(), start);
     }
 
     private void selectCandidate() {
-        TextView view;
-        int cX = mCandidateView.getScrollX();
-        int cW = mCandidateView.getWidth();
-        for (int i = 0; i < mCandidateLayout.getChildCount(); i++) {
-            view = (TextView) mCandidateLayout.getChildAt(i);
-            if (i == mCandidateIndex) {
-                // 見える場所にスクロールする
-                int bT = view.getTop();
-                int bL = view.getLeft();
-                int bR = view.getRight();
-                if (bL < cX) {
-                    mCandidateView.scrollTo(bL, bT);
+        if (mCandidateIndex >= 0) {
+            prefetchPrediction(mCandidates[mCandidateIndex]);
+        } else {
+            cancelPrefetchPrediction();
+        }
+        mCandidateAdapter.setSelectedIndex(mCandidateIndex);
+        if (mCandidateIndex >= 0) {
+            // 見える場所にスクロールする
+            mCandidateView.scrollToPosition(mCandidateIndex);
+        }
+    }
+
+    /**
+     * 表示している変換候補の続きを変換スレッドで取り出して、onMoreCandidatesLoaded()で後ろに追加する
+     *
+     * @param count      取り出す数
+     * @param selectNext 追加したら最後の候補の次を選ぶ、続きがなければ先頭を選ぶ
+     * @return 取り出しを始めたか取り出し中ならtrue
+     */
+    private boolean loadMoreCandidates(int count, boolean selectNext) {
+        // 変換候補の表示が済んでいるときだけ、予測候補には続きはない
+        if (mInputText.length() == 0 || mCandidates == null || isConverting() || mCandidatesDirty) {
+            return false;
+        }
+        if (mLoadMoreFuture != null) {
+            // 取り出し中の結果が届いてから続ける
+            mLoadMoreCount = Math.max(mLoadMoreCount, count);
+            mSelectNextOnLoad |= selectNext;
+            return true;
+        }
+        count = Math.min(count, MAX_CANDIDATE_COUNT - mCandidates.length);
+        if (count <= 0) {
+            return false;
+        }
+        int generation = mConversionGeneration;
+        String reading = mInputText.toString();
+        int splitPos = mConvertLength;
+        Candidate[] shown = mCandidates;
+        int n = count;
+        mSelectNextOnLoad = selectNext;
+        mLoadMoreFuture = mConversionExecutor.submit(() -> {
+            List<Candidate> more;
+            try {
+                if (mCandidateIterator == null || mCandidateIteratorTail != shown) {
+                    mCandidateIterator = mDictionary.openCandidateIterator(reading, splitPos, shown);
                 }
-                if (bR > (cX + cW)) {
-                    mCandidateView.scrollTo(bR - cW, bT);
+                more = mCandidateIterator.next(n);
+            } catch (RuntimeException e) {
+                mHandler.post(() -> {
+                    throw e;
+                });
+                return;
+            }
+            // 元の配列は変換結果のキャッシュと共有しているので書き換えない
+            Candidate[] candidates = shown;
+            if (!more.isEmpty()) {
+                candidates = Arrays.copyOf(shown, shown.length + more.size());
+                for (int i = 0; i < more.size(); i++) {
+                    candidates[shown.length + i] = more.get(i);
                 }
-                view.setSelected(true);
-            } else {
-                view.setSelected(false);
+            }
+            mCandidateIteratorTail = candidates;
+            Candidate[] result = candidates;
+            mHandler.post(() -> onMoreCandidatesLoaded(generation, shown, result, more));
+        });
+        return true;
+    }
+
+    private void onMoreCandidatesLoaded(int generation, Candidate[] shown, Candidate[] candidates,
+                                        List<Candidate> more) {
+        if (generation != mConversionGeneration) {
+            return; // 入力が変わった
+        }
+        mLoadMoreFuture = null;
+        int count = mLoadMoreCount;
+        boolean selectNext = mSelectNextOnLoad;
+        mLoadMoreCount = 0;
+        mSelectNextOnLoad = false;
+        if (mCandidates != shown) {
+            return; // 候補一覧が変わった
+        }
+        // 最後の候補を選んだままのときだけ選択を進める
+        selectNext &= mCandidateIndex == shown.length - 1;
+        if (more.isEmpty()) {
+            if (selectNext) {
+                mCandidateIndex = 0;
+                selectCandidate();
+            }
+            return;
+        }
+        mCandidates = candidates;
+        // 表示の更新を待っていればそのときに全部表示される
+        if (!mCandidatesDirty) {
+            mCandidateAdapter.addCandidates(more);
+            if (isCandidatePanelVisible()) {
+                mCandidatePanelAdapter.addCandidates(more);
+            }
+        }
+        if (selectNext) {
+            mCandidateIndex = shown.length;
+            selectCandidate();
+        }
+        if (count > 0) {
+            loadMoreCandidates(count, false);
+        }
+    }
+
+    // 変換スレッドで呼ぶ
+    private void releaseCandidateIterator() {
+        mCandidateIterator = null;
+        mCandidateIteratorTail = null;
+    }
+
+    private boolean isCandidatePanelVisible() {
+        return mCandidatePanel.getVisibility() == View.VISIBLE;
+    }
+
+    // 候補一覧を開くときは今の候補を表示して、続きを多めに取り出す
+    private void setCandidatePanelVisible(boolean visible) {
+        if (visible == isCandidatePanelVisible()) {
+            return;
+        }
+        if (visible) {
+            awaitConversion();
+            flushUiUpdates();
+            mCandidatePanelAdapter.setCandidates(mCandidates, mCandidateLabels);
+            mCandidatePanel.scrollToPosition(0);
+            mCandidatePanel.setVisibility(View.VISIBLE);
+            mCandidateExpandView.setText(R.string.candidate_collapse);
+            loadMoreCandidates(CANDIDATE_PANEL_PAGE_SIZE, false);
+        } else {
+            mCandidatePanel.setVisibility(View.GONE);
+            mCandidatePanelAdapter.setCandidates(null);
+            mCandidateExpandView.setText(R.string.candidate_expand);
+        }
+    }
+
+    /*
+     * 変換スレッドで作った候補、作り始めたときのmConversionGenerationと一致すれば使う
+     */
+    private static class ConversionResult {
+        final int generation;
+        @Nullable
+        final Candidate prefix;
+        final Candidate[] candidates;
+        @Nullable
+        final Map<String, PrecomputedText> labels;
+
+        ConversionResult(int generation, @Nullable Candidate prefix, Candidate[] candidates,
+                         @Nullable Map<String, PrecomputedText> labels) {
+            this.generation = generation;
+            this.prefix = prefix;
+            this.candidates = candidates;
+            this.labels = labels;
+        }
+    }
+
+    /**
+     * 末尾の近くまでスクロールしたら候補の続きを取り出す
+     * 追加はスクロールの処理が終わった後にメインスレッドで行う
+     */
+    private class LoadMoreListener extends RecyclerView.OnScrollListener {
+        private final int mCount;
+
+        LoadMoreListener(int count) {
+            mCount = count;
+        }
+
+        @Override
+        public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+            int childCount = recyclerView.getChildCount();
+            if (childCount == 0) {
+                return;
+            }
+            int last = recyclerView.getChildAdapterPosition(recyclerView.getChildAt(childCount - 1));
+            RecyclerView.Adapter<?> adapter = recyclerView.getAdapter();
+            if (adapter != null && last >= adapter.getItemCount() - CANDIDATE_LOAD_MORE_THRESHOLD) {
+                loadMoreCandidates(mCount, false);
             }
         }
     }
@@ -89,7 +89,7 @@ public class LearningDictionaryTool extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.learning_dictionary_tool);
-        mDictionary = new Dictionary(this);
+        mDictionary = Dictionary.getInstance(this);
 
         Button exportButton = findViewById(R.id.export_button);
         exportButton.setOnClickListener(this::onClickExportDictionary);
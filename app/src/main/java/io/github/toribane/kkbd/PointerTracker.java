@@ -0,0 +1,136 @@
+/*
+ * Copyright 2024 kachaya
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.toribane.kkbd;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+
+/**
+ * 複数の指で押したキーを押した順に確定する
+ * 指を離したとき、または次の指が触れたときにキーを確定する
+ *
+ * @param <K> キー
+ */
+public class PointerTracker<K> {
+
+    /**
+     * キーの状態が変わったときに呼ばれる
+     */
+    public interface Listener<K> {
+        void onKeyPress(K key);
+
+        void onKeyRelease(K key);
+
+        void onKeyCommit(K key);
+    }
+
+    private final Listener<K> mListener;
+    // 押している指、押した順
+    private final ArrayList<TouchPointer<K>> mPointers = new ArrayList<>();
+
+    public PointerTracker(Listener<K> listener) {
+        mListener = listener;
+    }
+
+    // キーがない場所ならkeyはnull
+    public void onPointerDown(int pointerId, @Nullable K key) {
+        // 前の指のキーは離すのを待たずに確定する
+        for (TouchPointer<K> pointer : mPointers) {
+            commitPointer(pointer);
+        }
+        mPointers.add(new TouchPointer<>(pointerId, key));
+        if (key != null) {
+            mListener.onKeyPress(key);
+        }
+    }
+
+    public void onPointerMove(int pointerId, @Nullable K key) {
+        TouchPointer<K> pointer = findPointer(pointerId);
+        if (pointer == null || pointer.committed || pointer.key == key) {
+            return;    // 確定済みか同じキー内
+        }
+        // キーがない場所(外へ出て行った等)ではキーを離したことにする
+        releaseKey(pointer.key);
+        pointer.key = key;
+        if (key != null) {
+            mListener.onKeyPress(key);
+        }
+    }
+
+    public void onPointerUp(int pointerId) {
+        TouchPointer<K> pointer = findPointer(pointerId);
+        if (pointer == null) {
+            return;
+        }
+        commitPointer(pointer);
+        releaseKey(pointer.key);
+        mPointers.remove(pointer);
+    }
+
+    // 確定せずにすべての指を離す
+    public void cancel() {
+        for (TouchPointer<K> pointer : mPointers) {
+            releaseKey(pointer.key);
+        }
+        mPointers.clear();
+    }
+
+    public int getPointerCount() {
+        return mPointers.size();
+    }
+
+    @Nullable
+    private TouchPointer<K> findPointer(int pointerId) {
+        for (TouchPointer<K> pointer : mPointers) {
+            if (pointer.id == pointerId) {
+                return pointer;
+            }
+        }
+        return null;
+    }
+
+    // 1つの指で確定するのは1回だけ
+    private void commitPointer(TouchPointer<K> pointer) {
+        if (pointer.committed || pointer.key == null) {
+            return;
+        }
+        pointer.committed = true;
+        mListener.onKeyCommit(pointer.key);
+    }
+
+    private void releaseKey(@Nullable K key) {
+        if (key != null) {
+            mListener.onKeyRelease(key);
+        }
+    }
+
+    /*
+     * 押している指とそのキー
+     */
+    private static class TouchPointer<K> {
+        final int id;
+        K key;
+        boolean committed;
+
+        TouchPointer(int id, @Nullable K key) {
+            this.id = id;
+            this.key = key;
+        }
+    }
+}
@@ -1,11 +1,17 @@
 package io.github.toribane.kkbd;
 
+import android.content.pm.PackageManager;
 import android.os.Bundle;
 
 import androidx.appcompat.app.ActionBar;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.preference.Preference;
+import androidx.preference.PreferenceCategory;
 import androidx.preference.PreferenceFragmentCompat;
 
+import java.io.File;
+import java.util.Locale;
+
 public class SettingsActivity extends AppCompatActivity {
 
     @Override
@@ -25,9 +31,129 @@ public class SettingsActivity extends AppCompatActivity {
     }
 
     public static class SettingsFragment extends PreferenceFragmentCompat {
+        // バージョンをこの回数タップするとデバッグ画面を開く
+        private static final int DEBUG_TAP_COUNT = 7;
+        private int mVersionTapCount;
+
         @Override
         public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
             setPreferencesFromResource(R.xml.root_preferences, rootKey);
+
+            Preference version = findPreference("version");
+            if (version == null) {
+                return;
+            }
+            try {
+                String packageName = requireContext().getPackageName();
+                version.setSummary(requireContext().getPackageManager().getPackageInfo(packageName, 0).versionName);
+            } catch (PackageManager.NameNotFoundException ignored) {
+            }
+            version.setOnPreferenceClickListener(preference -> {
+                if (++mVersionTapCount >= DEBUG_TAP_COUNT) {
+                    mVersionTapCount = 0;
+                    getParentFragmentManager()
+                            .beginTransaction()
+                            .replace(R.id.settings, new DebugFragment())
+                            .addToBackStack(null)
+                            .commit();
+                }
+                return true;
+            });
+        }
+    }
+
+    /**
+     * 開発用の設定と計測結果
+     */
+    public static class DebugFragment extends PreferenceFragmentCompat {
+        @Override
+        public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
+            setPreferencesFromResource(R.xml.debug_preferences, rootKey);
+
+            Preference reset = findPreference("latency_reset");
+            if (reset != null) {
+                reset.setOnPreferenceClickListener(preference -> {
+                    getLatencyRecorder().reset();
+                    updateLatency();
+                    return true;
+                });
+            }
+            Preference clear = findPreference("key_trace_clear");
+            if (clear != null) {
+                clear.setOnPreferenceClickListener(preference -> {
+                    getKeyTraceFile().delete();
+                    updateKeyTrace();
+                    return true;
+                });
+            }
+        }
+
+        @Override
+        public void onResume() {
+            super.onResume();
+            updateLatency();
+            updateKeyTrace();
+            updateConversionCache();
+        }
+
+        // 起動してからの変換結果キャッシュのヒット率
+        private void updateConversionCache() {
+            Preference stats = findPreference("conversion_cache_stats");
+            if (stats != null) {
+                stats.setSummary(Dictionary.getInstance(requireContext()).getConversionCacheStats());
+            }
+        }
+
+        private File getKeyTraceFile() {
+            return new File(requireContext().getFilesDir(), KeyboardService.KEY_TRACE_FILE_NAME);
+        }
+
+        // 記録ファイルの場所と大きさ
+        private void updateKeyTrace() {
+            Preference clear = findPreference("key_trace_clear");
+            if (clear == null) {
+                return;
+            }
+            File file = getKeyTraceFile();
+            clear.setSummary(file.exists() ? file.getAbsolutePath() + " (" + file.length() + " bytes)" : "記録なし");
+        }
+
+        private LatencyRecorder getLatencyRecorder() {
+            return Dictionary.getInstance(requireContext()).getLatencyRecorder();
+        }
+
+        // 段階ごとに入力の長さ別のp50/p95/p99を表示する
+        private void updateLatency() {
+            PreferenceCategory category = findPreference("latency_phases");
+            if (category == null) {
+                return;
+            }
+            category.removeAll();
+            LatencyRecorder recorder = getLatencyRecorder();
+            for (int phase = 0; phase < LatencyRecorder.PHASE_COUNT; phase++) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < LatencyRecorder.getLengthCount(); i++) {
+                    LatencyHistogram histogram = recorder.getHistogram(phase, i);
+                    long count = histogram.count();
+                    if (count == 0) {
+                        continue;
+                    }
+                    if (sb.length() != 0) {
+                        sb.append("\n");
+                    }
+                    sb.append(String.format(Locale.US, "%s n=%d p50=%.2f p95=%.2f p99=%.2f ms",
+                            LatencyRecorder.getLengthLabel(i), count,
+                            histogram.percentile(50) / 1000.0,
+                            histogram.percentile(95) / 1000.0,
+                            histogram.percentile(99) / 1000.0));
+                }
+                Preference preference = new Preference(requireContext());
+                preference.setTitle(LatencyRecorder.getPhaseName(phase));
+                preference.setSummary(sb.length() == 0 ? "記録なし" : sb.toString());
+                preference.setIconSpaceReserved(false);
+                preference.setSelectable(false);
+                category.addPreference(preference);
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -19,10 +19,15 @@ package io.github.toribane.kkbd;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RecordingCanvas;
 import android.graphics.RectF;
+import android.graphics.RenderNode;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
 
 public class SoftKey {
     private final int mId;
@@ -35,6 +40,19 @@ public class SoftKey {
     private boolean mPressed;
     private int mForegroundColor;
     private int mBackgroundColor;
+    // 表示が変わって描き直しが必要
+    private boolean mDirty = true;
+    // 描画内容を記録しておく、API 29以降でハードウェア描画のときだけ使う
+    private RenderNode mRenderNode;
+    private final Rect mBounds = new Rect();
+    // 文字と表示位置、キーの大きさか文字が変わったときだけ測り直す
+    private final char[] mLabel = new char[1];
+    private final Paint.FontMetrics mFontMetrics = new Paint.FontMetrics();
+    private boolean mLabelValid;
+    private float mLabelX;
+    private float mLabelY;
+    // アイコンの表示範囲
+    private final Rect mIconBounds = new Rect();
 
     public SoftKey(int id) {
         mId = id;
@@ -49,19 +67,34 @@ public class SoftKey {
         mRect.top = y;
         mRect.right = x + w;
         mRect.bottom = y + h;
+        int r = (int) (h / 4.0);
+        mIconBounds.set((int) mRect.centerX() - r, (int) mRect.centerY() - r,
+                (int) mRect.centerX() + r, (int) mRect.centerY() + r);
+        mPaintText.setTextSize(h * 0.5f);
+        mLabelValid = false;
+        mDirty = true;
     }
 
     public void setColor(int foregroundColor, int backgroundColor) {
         mForegroundColor = foregroundColor;
         mBackgroundColor = backgroundColor;
+        mPaintText.setColor(mForegroundColor);
+        mDirty = true;
     }
 
     public void setCharacter(char c) {
-        mCharacter = c;
+        if (mCharacter != c) {
+            mCharacter = c;
+            mLabelValid = false;
+            mDirty = true;
+        }
     }
 
     public void setDrawable(Drawable d) {
-        mDrawable = d;
+        if (mDrawable != d) {
+            mDrawable = d;
+            mDirty = true;
+        }
     }
 
     public boolean isRepeatable() {
@@ -73,14 +106,60 @@ public class SoftKey {
     }
 
     public void setPressed(boolean b) {
-        mPressed = b;
+        if (mPressed != b) {
+            mPressed = b;
+            mDirty = true;
+        }
     }
 
     public boolean contains(float x, float y) {
         return mRect.contains(x, y);
     }
 
+    public boolean isDirty() {
+        return mDirty;
+    }
+
+    // 描画する範囲
+    public void getBounds(Rect rect) {
+        mRect.roundOut(rect);
+    }
+
+    public boolean quickReject(Canvas canvas) {
+        return canvas.quickReject(mRect);
+    }
+
+    /**
+     * 記録しておいた描画内容を描く、変わっていれば記録し直す
+     *
+     * @param canvas ハードウェア描画のCanvas
+     */
+    @RequiresApi(Build.VERSION_CODES.Q)
+    public void drawRenderNode(@NonNull Canvas canvas) {
+        if (mRenderNode == null) {
+            mRenderNode = new RenderNode("SoftKey");
+        }
+        if (mDirty || !mRenderNode.hasDisplayList()) {
+            mRect.roundOut(mBounds);
+            mRenderNode.setPosition(mBounds);
+            RecordingCanvas recordingCanvas = mRenderNode.beginRecording();
+            recordingCanvas.translate(-mBounds.left, -mBounds.top);
+            draw(recordingCanvas);
+            mRenderNode.endRecording();
+        }
+        canvas.drawRenderNode(mRenderNode);
+    }
+
+    // 記録しておいた描画内容を捨てる、次に描くときに記録し直す
+    public void discardRenderNode() {
+        if (mRenderNode != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            mRenderNode.discardDisplayList();
+        }
+        mDirty = true;
+    }
+
     public void draw(Canvas canvas) {
+        mDirty = false;
         if (mPressed) {
             mPaintBackground.setColor(Color.GRAY);
         } else {
@@ -99,22 +178,23 @@ public class SoftKey {
     }
 
     private void drawDrawableKey(Canvas canvas) {
-        int r = (int) (mRect.height() / 4.0);
-        int left = (int) mRect.centerX() - r;
-        int top = (int) mRect.centerY() - r;
-        int right = (int) mRect.centerX() + r;
-        int bottom = (int) mRect.centerY() + r;
-        mDrawable.setBounds(left, top, right, bottom);
+        mDrawable.setBounds(mIconBounds);
         mDrawable.draw(canvas);
     }
 
+    // 描画のたびにStringを作ったり測ったりしない
     private void drawCharacterKey(@NonNull Canvas canvas) {
-        String text = Character.toString(mCharacter);
-        mPaintText.setColor(mForegroundColor);
-        mPaintText.setTextSize(mRect.height() * 0.5f);
-        Paint.FontMetrics fontMetrics = mPaintText.getFontMetrics();
-        float x = mRect.centerX() - (mPaintText.measureText(text) / 2.0f);
-        float y = mRect.centerY() - ((fontMetrics.ascent + fontMetrics.descent) / 2.0f);
-        canvas.drawText(text, x, y, mPaintText);
+        if (!mLabelValid) {
+            layoutLabel();
+        }
+        canvas.drawText(mLabel, 0, 1, mLabelX, mLabelY, mPaintText);
+    }
+
+    private void layoutLabel() {
+        mLabel[0] = mCharacter;
+        mPaintText.getFontMetrics(mFontMetrics);
+        mLabelX = mRect.centerX() - (mPaintText.measureText(mLabel, 0, 1) / 2.0f);
+        mLabelY = mRect.centerY() - ((mFontMetrics.ascent + mFontMetrics.descent) / 2.0f);
+        mLabelValid = true;
     }
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2024 kachaya
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.toribane.kkbd;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.os.Build;
+import android.view.View;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SoftKeyを並べて描くView
+ * API 29以降のハードウェア描画ではキーごとのRenderNodeを使い、表示が変わったキーだけ記録し直す
+ * それ以外は変わったキーの範囲だけ描き直す
+ */
+public class SoftKeyView extends View {
+
+    private List<SoftKey> mSoftKeys = new ArrayList<>();
+    private final Rect mDirtyRect = new Rect();
+    private final Rect mKeyRect = new Rect();
+
+    public SoftKeyView(Context context) {
+        super(context);
+    }
+
+    public void setSoftKeys(List<SoftKey> softKeys) {
+        mSoftKeys = softKeys;
+        invalidate();
+    }
+
+    /**
+     * 表示が変わったキーの範囲を描き直す
+     */
+    @SuppressWarnings("deprecation")
+    public void invalidateDirtyKeys() {
+        mDirtyRect.setEmpty();
+        for (SoftKey softKey : mSoftKeys) {
+            if (softKey.isDirty()) {
+                softKey.getBounds(mKeyRect);
+                mDirtyRect.union(mKeyRect);
+            }
+        }
+        if (mDirtyRect.isEmpty()) {
+            return;
+        }
+        if (isHardwareAccelerated()) {
+            // 範囲は描画側で決まるので、キーの並びだけ記録し直す
+            invalidate();
+        } else {
+            invalidate(mDirtyRect);
+        }
+    }
+
+    // 記録しておいた描画内容を捨てる、次に表示するときに描き直す
+    public void discardKeys() {
+        for (SoftKey softKey : mSoftKeys) {
+            softKey.discardRenderNode();
+        }
+    }
+
+    @Override
+    protected void onDraw(@NonNull Canvas canvas) {
+        super.onDraw(canvas);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && canvas.isHardwareAccelerated()) {
+            for (SoftKey softKey : mSoftKeys) {
+                softKey.drawRenderNode(canvas);
+            }
+            return;
+        }
+        for (SoftKey softKey : mSoftKeys) {
+            if (!softKey.quickReject(canvas)) {
+                softKey.draw(canvas);
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2024 kachaya
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.toribane.kkbd;
+
+import android.content.res.AssetManager;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * シンボルキーボードの絵文字と記号の一覧
+ * 使うときに読み込むが、キーボードの表示後に別スレッドで読み込んでおける
+ */
+public class SymbolData implements MemoryManager.Client {
+    private static final String EMOJI_FILE_NAME = "emoji.txt";
+    private static final String KIGOU_FILE_NAME = "kigou.txt";
+
+    private final AssetManager mAssets;
+    private ArrayList<SymbolGroup> mEmojiList;
+    private ArrayList<SymbolGroup> mKigouList;
+
+    public SymbolData(AssetManager assets) {
+        mAssets = assets;
+    }
+
+    // まだ読み込んでいなければ別スレッドで読み込む
+    public void preload(Executor executor) {
+        executor.execute(() -> {
+            getEmojiList();
+            getKigouList();
+        });
+    }
+
+    // 読み込み中なら終わるまで待つ
+    public synchronized ArrayList<SymbolGroup> getEmojiList() {
+        if (mEmojiList == null) {
+            mEmojiList = buildSymbolList(EMOJI_FILE_NAME);
+        }
+        return mEmojiList;
+    }
+
+    public synchronized ArrayList<SymbolGroup> getKigouList() {
+        if (mKigouList == null) {
+            mKigouList = buildSymbolList(KIGOU_FILE_NAME);
+        }
+        return mKigouList;
+    }
+
+    // 表示中のシンボルキーボードは自分の参照を持っているので、ここではいつ手放してもよい
+    @Override
+    public synchronized void onTrim(int level) {
+        if (level >= MemoryManager.TRIM_RELEASE) {
+            mEmojiList = null;
+            mKigouList = null;
+        }
+    }
+
+    private ArrayList<SymbolGroup> buildSymbolList(String fileName) {
+        ArrayList<SymbolGroup> symbolGroup = new ArrayList<>();
+        SymbolGroup list = null;
+        try {
+            BufferedReader br = new BufferedReader(new InputStreamReader(mAssets.open(fileName)));
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.startsWith("#")) {
+                    list = new SymbolGroup(line);
+                    symbolGroup.add(list);
+                } else {
+                    if (list != null) {
+                        list.symbolList.add(line);
+                    }
+                }
+            }
+            br.close();
+        } catch (IOException ignored) {
+        }
+        return symbolGroup;
+    }
+
+    /*
+     * シンボルグループ
+     */
+    public static class SymbolGroup {
+        public String group;
+        public ArrayList<String> symbolList;
+
+        public SymbolGroup(String group) {
+            this.group = group;
+            this.symbolList = new ArrayList<>();
+        }
+    }
+}
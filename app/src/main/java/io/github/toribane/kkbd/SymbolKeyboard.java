@@ -16,23 +16,19 @@
 
 package io.github.toribane.kkbd;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
 import android.graphics.Color;
 import android.util.AttributeSet;
 import android.view.ContextThemeWrapper;
 import android.view.LayoutInflater;
-import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.HorizontalScrollView;
-import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.flexbox.AlignItems;
@@ -40,9 +36,6 @@ import com.google.android.flexbox.FlexDirection;
 import com.google.android.flexbox.FlexWrap;
 import com.google.android.flexbox.FlexboxLayoutManager;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 
 public class SymbolKeyboard extends KeyboardLayout {
@@ -51,8 +44,9 @@ public class SymbolKeyboard extends KeyboardLayout {
     private final static int SYMBOL_TYPE_KIGOU = 1;
     //
     private final FlexboxListViewAdapter mFlexListViewAdapter;
-    private final ArrayList<SymbolGroup> mEmojiList;
-    private final ArrayList<SymbolGroup> mKigouList;
+    // 表示していないときにメモリが足りなくなったら手放す
+    private ArrayList<SymbolData.SymbolGroup> mEmojiList;
+    private ArrayList<SymbolData.SymbolGroup> mKigouList;
     private float mSymbolAreaHeight;
     private int mSymbolType;
     private int mSymbolGroupIndex;
@@ -61,6 +55,8 @@ public class SymbolKeyboard extends KeyboardLayout {
     //
     private final HorizontalScrollView mHorizontalScrollView;
     private ArrayList<String> mSymbolList;
+    // 下1段の機能キー、onSizeChanged()で範囲を決める
+    private final KeyGrid mFunctionGrid = new KeyGrid(1, 9);
 
     public SymbolKeyboard(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -80,12 +76,9 @@ public class SymbolKeyboard extends KeyboardLayout {
         mFlexListViewAdapter = new FlexboxListViewAdapter(context);
         recyclerView.setAdapter(mFlexListViewAdapter);
 
-        // シンボルデータ読み込み
-        mEmojiList = buildSymbolList("emoji.txt");
-        mKigouList = buildSymbolList("kigou.txt");
-
-        // ImageViewに配置するSoftKey
-        mImageView = new ImageView(context);
+        // SoftKeyViewに配置するSoftKey
+        mKeyView = new SoftKeyView(context);
+        mKeyView.setBackgroundColor(mBackgroundColor);
         mSoftKeys.add(mSymbolEmojiKey);
         mSoftKeys.add(mSymbolKigouKey);
         mSoftKeys.add(mKeyboardViewKey);
@@ -94,6 +87,15 @@ public class SymbolKeyboard extends KeyboardLayout {
         mSoftKeys.add(mCursorRightKey);
         mSoftKeys.add(mBackspaceKey);
         mSoftKeys.add(mEnterKey);
+        mKeyView.setSoftKeys(mSoftKeys);
+        mFunctionGrid.setKey(0, 0, 1, mSymbolKigouKey);
+        mFunctionGrid.setKey(0, 1, 1, mSymbolEmojiKey);
+        mFunctionGrid.setKey(0, 2, 1, mKeyboardViewKey);
+        mFunctionGrid.setKey(0, 3, 2, mSpaceKey);
+        mFunctionGrid.setKey(0, 5, 1, mCursorLeftKey);
+        mFunctionGrid.setKey(0, 6, 1, mCursorRightKey);
+        mFunctionGrid.setKey(0, 7, 1, mBackspaceKey);
+        mFunctionGrid.setKey(0, 8, 1, mEnterKey);
 
         // グループ選択ボタンを配置
         mHorizontalScrollView = new HorizontalScrollView(context);
@@ -106,7 +108,7 @@ public class SymbolKeyboard extends KeyboardLayout {
 
         addView(mHorizontalScrollView, new LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, 0, 1.0f));
         addView(recyclerView, new LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, 0, 4.0f));
-        addView(mImageView, new LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, 0, 1.0f));
+        addView(mKeyView, new LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, 0, 1.0f));
 
         //
         mSymbolType = SYMBOL_TYPE_EMOJI;
@@ -119,6 +121,9 @@ public class SymbolKeyboard extends KeyboardLayout {
 
     private void selectEmojiKeyboard() {
         mSymbolType = SYMBOL_TYPE_EMOJI;
+        if (mEmojiList == null) {
+            mEmojiList = mKeyboardService.getSymbolData().getEmojiList();
+        }
         int style = R.style.CandidateText;
         Context wrappedContext = new ContextThemeWrapper(mContext, style);
 
@@ -136,6 +141,9 @@ public class SymbolKeyboard extends KeyboardLayout {
 
     private void selectKigouKeyboard() {
         mSymbolType = SYMBOL_TYPE_KIGOU;
+        if (mKigouList == null) {
+            mKigouList = mKeyboardService.getSymbolData().getKigouList();
+        }
         int style = R.style.CandidateText;
         Context wrappedContext = new ContextThemeWrapper(mContext, style);
 
@@ -151,6 +159,32 @@ public class SymbolKeyboard extends KeyboardLayout {
         mFlexListViewAdapter.setData(mSymbolList);
     }
 
+    @Override
+    public void onTrim(int level) {
+        if (level < MemoryManager.TRIM_RELEASE || getVisibility() == VISIBLE) {
+            return;
+        }
+        mEmojiList = null;
+        mKigouList = null;
+        mSymbolList = null;
+        mFlexListViewAdapter.setData(null);
+        mGroupView.removeAllViews();
+    }
+
+    // 手放していたら表示するときに読み直す
+    @Override
+    protected void onVisibilityChanged(@NonNull View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        if (changedView != this || visibility != VISIBLE || mSymbolList != null) {
+            return;
+        }
+        if (mSymbolType == SYMBOL_TYPE_EMOJI) {
+            selectEmojiKeyboard();
+        } else {
+            selectKigouKeyboard();
+        }
+    }
+
     // グループ選択
     private void onClickGroupTextListener(View view) {
         mSymbolGroupIndex = mGroupView.indexOfChild(view);
@@ -161,61 +195,11 @@ public class SymbolKeyboard extends KeyboardLayout {
         }
     }
 
-    @SuppressLint("ClickableViewAccessibility")
+    // 座標はこのViewのもの、キーは下1段にある
+    @Nullable
     @Override
-    public boolean onTouchEvent(@NonNull MotionEvent event) {
-        float x = event.getX();
-        float y = event.getY();
-        SoftKey currentKey = null;  // キーがない場所の場合(外へ出て行った等)
-        for (SoftKey softkey : mSoftKeys) {
-            if (softkey.contains(x, y - mSymbolAreaHeight)) {
-                currentKey = softkey;
-                break;
-            }
-        }
-        if (currentKey == null) {
-            return true;
-        }
-
-        switch (event.getAction()) {
-            case MotionEvent.ACTION_DOWN:
-                if (currentKey.isRepeatable()) {
-                    // 押されたキーの初回リピート
-                    mRepeatKey = currentKey;
-                    mRepeatHandler.postDelayed(mRepeatRunnable, mRepeatTimeout);
-                }
-                currentKey.setPressed(true);
-                mLastKey = currentKey;
-                break;
-
-            case MotionEvent.ACTION_MOVE:
-                if (currentKey.equals(mLastKey)) {
-                    return true;    // 同じキー内
-                }
-                if (currentKey.isRepeatable()) {
-                    // 移動した先のキーの初回リピート
-                    mRepeatKey = currentKey;
-                    mRepeatHandler.postDelayed(mRepeatRunnable, mRepeatTimeout);
-                }
-                if (mLastKey != null) {
-                    mLastKey.setPressed(false);
-                }
-                currentKey.setPressed(true);
-                mLastKey = currentKey;
-                break;
-
-            case MotionEvent.ACTION_UP:
-                currentKey.setPressed(false);
-                processSoftKey(currentKey);
-                mRepeatKey = null;
-                mLastKey = null;
-                break;
-
-            default:
-                break;
-        }
-        drawKeyboard();
-        return true;
+    public SoftKey findKey(float x, float y) {
+        return mFunctionGrid.find(x, y);
     }
 
     @Override
@@ -235,18 +219,6 @@ public class SymbolKeyboard extends KeyboardLayout {
         }
     }
 
-    private void drawKeyboard() {
-        if (mCanvas == null) {
-            return;
-        }
-        mCanvas.drawColor(mBackgroundColor);
-        for (SoftKey softKey : mSoftKeys) {
-            softKey.draw(mCanvas);
-        }
-        mImageView.setImageBitmap(mBitmap);
-        invalidate();
-    }
-
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
@@ -266,9 +238,7 @@ public class SymbolKeyboard extends KeyboardLayout {
         mCursorRightKey.setPos(kw * 6, 0, kw, kh);
         mBackspaceKey.setPos(kw * 7, 0, kw, kh);
         mEnterKey.setPos(kw * 8, 0, kw, kh);
-
-        mBitmap = Bitmap.createBitmap(w, (int) mKeypadAreaHeight, Bitmap.Config.ARGB_8888);
-        mCanvas = new Canvas(mBitmap);
+        mFunctionGrid.setBounds(0, mSymbolAreaHeight, w, kh);
         drawKeyboard();
     }
 
@@ -332,41 +302,4 @@ public class SymbolKeyboard extends KeyboardLayout {
             return data.size();
         }
     }
-
-    /*
-     * シンボルグループ
-     */
-    private static class SymbolGroup {
-        public String group;
-        public ArrayList<String> symbolList;
-
-        public SymbolGroup(String group) {
-            this.group = group;
-            this.symbolList = new ArrayList<>();
-        }
-    }
-
-    private ArrayList<SymbolGroup> buildSymbolList(String fileName) {
-        ArrayList<SymbolGroup> symbolGroup = new ArrayList<>();
-        SymbolGroup list = null;
-        try {
-            BufferedReader br = new BufferedReader(new InputStreamReader(mContext.getAssets().open(fileName)));
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (line.startsWith("#")) {
-                    list = new SymbolGroup(line);
-                    symbolGroup.add(list);
-                } else {
-                    if (list != null) {
-                        list.symbolList.add(line);
-                    }
-                }
-            }
-            br.close();
-        } catch (IOException ignored) {
-        }
-        return symbolGroup;
-    }
-
-
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2024 kachaya
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.toribane.kkbd;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class PointerTrackerTest {
+
+    // 呼ばれた順に記録する
+    private final List<String> mEvents = new ArrayList<>();
+    private PointerTracker<String> mTracker;
+
+    @Before
+    public void setUp() {
+        mTracker = new PointerTracker<>(new PointerTracker.Listener<String>() {
+            @Override
+            public void onKeyPress(String key) {
+                mEvents.add("press " + key);
+            }
+
+            @Override
+            public void onKeyRelease(String key) {
+                mEvents.add("release " + key);
+            }
+
+            @Override
+            public void onKeyCommit(String key) {
+                mEvents.add("commit " + key);
+            }
+        });
+    }
+
+    private void assertEvents(String... events) {
+        assertEquals(Arrays.asList(events), mEvents);
+        mEvents.clear();
+    }
+
+    @Test
+    public void singleTap() {
+        mTracker.onPointerDown(0, "a");
+        assertEvents("press a");
+        mTracker.onPointerUp(0);
+        assertEvents("commit a", "release a");
+        assertEquals(0, mTracker.getPointerCount());
+    }
+
+    @Test
+    public void secondDownCommitsFirstKey() {
+        // DOWN a, POINTER_DOWN b, UP a, POINTER_UP b
+        mTracker.onPointerDown(0, "a");
+        mTracker.onPointerDown(1, "b");
+        assertEvents("press a", "commit a", "press b");
+        mTracker.onPointerUp(0);
+        assertEvents("release a");
+        mTracker.onPointerUp(1);
+        assertEvents("commit b", "release b");
+    }
+
+    @Test
+    public void laterPointerReleasedFirst() {
+        // DOWN a, POINTER_DOWN b, POINTER_UP b, UP a
+        mTracker.onPointerDown(0, "a");
+        mTracker.onPointerDown(1, "b");
+        mTracker.onPointerUp(1);
+        assertEvents("press a", "commit a", "press b", "commit b", "release b");
+        mTracker.onPointerUp(0);
+        assertEvents("release a");
+    }
+
+    @Test
+    public void rollingThreeFingers() {
+        // 前の指を離す前に次の指が触れても押した順に1回ずつ確定する
+        mTracker.onPointerDown(0, "a");
+        mTracker.onPointerDown(1, "b");
+        mTracker.onPointerUp(0);
+        mTracker.onPointerDown(2, "c");
+        mTracker.onPointerUp(1);
+        mTracker.onPointerUp(2);
+        assertEvents("press a", "commit a", "press b", "release a",
+                "commit b", "press c", "release b", "commit c", "release c");
+    }
+
+    @Test
+    public void reusedPointerIdIsNewPointer() {
+        mTracker.onPointerDown(0, "a");
+        mTracker.onPointerDown(1, "b");
+        mTracker.onPointerUp(0);
+        mTracker.onPointerDown(0, "c");
+        assertEvents("press a", "commit a", "press b", "release a", "commit b", "press c");
+        mTracker.onPointerUp(0);
+        assertEvents("commit c", "release c");
+        mTracker.onPointerUp(1);
+        assertEvents("release b");
+    }
+
+    @Test
+    public void cancelReleasesWithoutCommit() {
+        mTracker.onPointerDown(0, "a");
+        mTracker.cancel();
+        assertEvents("press a", "release a");
+        assertEquals(0, mTracker.getPointerCount());
+        // CANCELの後のUPは何もしない
+        mTracker.onPointerUp(0);
+        assertEvents();
+    }
+
+    @Test
+    public void cancelAfterPointerDown() {
+        // 確定済みの指も確定していない指も離すだけ
+        mTracker.onPointerDown(0, "a");
+        mTracker.onPointerDown(1, "b");
+        mTracker.cancel();
+        assertEvents("press a", "commit a", "press b", "release a", "release b");
+        mTracker.onPointerDown(0, "c");
+        mTracker.onPointerUp(0);
+        assertEvents("press c", "commit c", "release c");
+    }
+
+    @Test
+    public void moveToAnotherKey() {
+        mTracker.onPointerDown(0, "a");
+        mTracker.onPointerMove(0, "a");
+        mTracker.onPointerMove(0, "b");
+        mTracker.onPointerUp(0);
+        assertEvents("press a", "release a", "press b", "commit b", "release b");
+    }
+
+    @Test
+    public void moveOutsideKeys() {
+        // キーのない場所で離すと何も確定しない
+        mTracker.onPointerDown(0, "a");
+        mTracker.onPointerMove(0, null);
+        mTracker.onPointerUp(0);
+        assertEvents("press a", "release a");
+    }
+
+    @Test
+    public void committedPointerIgnoresMove() {
+        mTracker.onPointerDown(0, "a");
+        mTracker.onPointerDown(1, "b");
+        mTracker.onPointerMove(0, "c");
+        mTracker.onPointerUp(0);
+        mTracker.onPointerUp(1);
+        assertEvents("press a", "commit a", "press b", "release a", "commit b", "release b");
+    }
+
+    @Test
+    public void downOutsideKeys() {
+        mTracker.onPointerDown(0, null);
+        mTracker.onPointerDown(1, "a");
+        mTracker.onPointerUp(0);
+        mTracker.onPointerUp(1);
+        assertEvents("press a", "commit a", "release a");
+    }
+}
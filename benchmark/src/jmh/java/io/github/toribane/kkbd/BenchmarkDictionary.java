@@ -0,0 +1,177 @@
+/*
+ * Copyright 2024 kachaya
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.toribane.kkbd;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import jdbm.RecordManager;
+import jdbm.RecordManagerFactory;
+import jdbm.RecordManagerOptions;
+import jdbm.btree.BTree;
+import jdbm.helper.StringComparator;
+import jdbm.helper.Tuple;
+import jdbm.helper.TupleBrowser;
+
+/**
+ * ベンチマーク用の辞書ディレクトリ
+ * 実際の辞書がなければ同じ形式の辞書を乱数で作る
+ */
+public class BenchmarkDictionary {
+    private static final String BTREE_NAME = "btree_dic";
+    private static final String HIRAGANA = "あいうえおかきくけこさしすせそたちつてとなにぬねのはひふへほまみむめもやゆよらりるれろわをん"
+            + "がぎぐげござじずぜぞだぢづでどばびぶべぼぱぴぷぺぽゃゅょっー";
+    private static final int SYNTHETIC_READINGS = 50_000;
+    private static final short SYNTHETIC_DIM = 256;
+    private static final int SAMPLE_READINGS = 2048;
+
+    public final Path dir;
+    public final ConnectionTable connection;
+    // 辞書にある読み
+    public final List<String> readings;
+
+    /**
+     * @param dicDir system_dic.dbとconnectionで始まる連接コスト表のあるディレクトリ、空ならば合成する
+     * @param seed   合成に使う乱数の種
+     */
+    public BenchmarkDictionary(String dicDir, long seed) throws IOException {
+        dir = Files.createTempDirectory("kkbd");
+        Random random = new Random(seed);
+        if (dicDir.isEmpty()) {
+            connection = buildSyntheticConnection(random);
+            buildSyntheticSystemDic(dir.resolve(ConversionEngine.SYSTEM_DIC_NAME).toString(), random);
+        } else {
+            File src = new File(dicDir);
+            Files.copy(new File(src, ConversionEngine.SYSTEM_DIC_NAME + ".db").toPath(),
+                    dir.resolve(ConversionEngine.SYSTEM_DIC_NAME + ".db"), StandardCopyOption.REPLACE_EXISTING);
+            File[] files = src.listFiles((d, name) -> name.startsWith("connection"));
+            if (files == null || files.length == 0) {
+                throw new IOException("connection not found in " + dicDir);
+            }
+            connection = ConnectionTable.read(new FileInputStream(files[0]));
+        }
+        readings = sampleReadings(dir.resolve(ConversionEngine.SYSTEM_DIC_NAME).toString(), random);
+    }
+
+    public ConversionEngine openEngine() {
+        return new ConversionEngine(dir.toString(), connection);
+    }
+
+    // 学習辞書と予測辞書を消して最初の状態に戻す
+    public void resetLearning() throws IOException {
+        try (Stream<Path> stream = Files.list(dir)) {
+            for (Path path : (Iterable<Path>) stream::iterator) {
+                String name = path.getFileName().toString();
+                if (!name.startsWith(ConversionEngine.SYSTEM_DIC_NAME)) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    public void delete() throws IOException {
+        try (Stream<Path> stream = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) stream.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * 辞書の読みをつなげて入力を作る
+     *
+     * @param count  作る数
+     * @param length 入力の長さの目安
+     */
+    public List<String> buildInputs(int count, int length, long seed) {
+        Random random = new Random(seed);
+        List<String> inputs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            StringBuilder sb = new StringBuilder();
+            while (sb.length() < length) {
+                sb.append(readings.get(random.nextInt(readings.size())));
+            }
+            inputs.add(sb.toString());
+        }
+        return inputs;
+    }
+
+    private static ConnectionTable buildSyntheticConnection(Random random) {
+        short[] table = new short[SYNTHETIC_DIM * SYNTHETIC_DIM];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (short) (random.nextInt(6000) - 1000);
+        }
+        return new ConnectionTable(SYNTHETIC_DIM, table);
+    }
+
+    private static void buildSyntheticSystemDic(String path, Random random) throws IOException {
+        Properties props = new Properties();
+        props.setProperty(RecordManagerOptions.DISABLE_TRANSACTIONS, "true");
+        RecordManager recman = RecordManagerFactory.createRecordManager(path, props);
+        BTree btree = BTree.createInstance(recman, new StringComparator());
+        recman.setNamedObject(BTREE_NAME, btree.getRecid());
+        for (int i = 0; i < SYNTHETIC_READINGS; i++) {
+            // 短い読みほど多くなるようにする
+            int len = 1 + (int) Math.min(7, Math.abs(random.nextGaussian() * 2.5));
+            StringBuilder reading = new StringBuilder();
+            for (int j = 0; j < len; j++) {
+                reading.append(HIRAGANA.charAt(random.nextInt(HIRAGANA.length())));
+            }
+            List<Word> words = new ArrayList<>();
+            int count = 1 + random.nextInt(6);
+            for (int j = 0; j < count; j++) {
+                words.add(new Word(reading.toString(), (short) random.nextInt(SYNTHETIC_DIM),
+                        (short) random.nextInt(SYNTHETIC_DIM), (short) (2000 + random.nextInt(8000)), reading + "#" + j));
+            }
+            btree.insert(reading.toString(), WordCodec.encode(words), true);
+        }
+        recman.commit();
+        recman.close();
+    }
+
+    // 辞書全体から均等に読みを取り出す
+    private static List<String> sampleReadings(String path, Random random) throws IOException {
+        Properties props = new Properties();
+        props.setProperty(RecordManagerOptions.DISABLE_TRANSACTIONS, "true");
+        RecordManager recman = RecordManagerFactory.createRecordManager(path, props);
+        BTree btree = BTree.load(recman, recman.getNamedObject(BTREE_NAME));
+        int step = Math.max(1, btree.size() / SAMPLE_READINGS);
+        List<String> list = new ArrayList<>();
+        Tuple tuple = new Tuple();
+        TupleBrowser browser = btree.browse();
+        int skip = random.nextInt(step);
+        while (browser.getNext(tuple)) {
+            if (skip-- > 0) {
+                continue;
+            }
+            list.add((String) tuple.getKey());
+            skip = step - 1;
+        }
+        recman.close();
+        return list;
+    }
+}
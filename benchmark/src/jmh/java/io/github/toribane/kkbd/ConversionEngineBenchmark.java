@@ -0,0 +1,132 @@
+/*
+ * Copyright 2024 kachaya
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.toribane.kkbd;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 変換エンジンのベンチマーク
+ * 変換と予測の結果キャッシュより多くの入力を順に使うので、ほとんどキャッシュには当たらない
+ * 学習辞書と予測辞書はイテレーションごとに最初の状態に戻す
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ConversionEngineBenchmark {
+    private static final int INPUT_COUNT = 1024;
+    private static final long SEED = 1;
+
+    // 空なら合成した辞書
+    @Param({""})
+    public String dicDir;
+
+    @Param({"8", "16"})
+    public int inputLength;
+
+    @Param({"false", "true"})
+    public boolean parallelLattice;
+
+    private BenchmarkDictionary mDictionary;
+    private ConversionEngine mEngine;
+    private List<String> mInputs;
+    private List<Candidate> mCandidates;
+    private int mIndex;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDictionary = new BenchmarkDictionary(dicDir, SEED);
+        mInputs = mDictionary.buildInputs(INPUT_COUNT, inputLength, SEED);
+        // 学習と予測に使う候補、学習していない状態で作る
+        ConversionEngine engine = mDictionary.openEngine();
+        mCandidates = new ArrayList<>();
+        for (String input : mInputs) {
+            Candidate[] candidates = engine.buildConversionCandidate(input, input.length());
+            if (candidates.length > 0 && candidates[0].words != null) {
+                mCandidates.add(candidates[0]);
+            }
+        }
+        engine.close();
+    }
+
+    // 前のイテレーションのaddLearning()で増えた学習を消してから始める
+    @Setup(Level.Iteration)
+    public void setUpIteration() throws IOException {
+        mDictionary.resetLearning();
+        mEngine = mDictionary.openEngine();
+        mEngine.setParallelLattice(parallelLattice);
+        // 予測辞書に後続語を入れておく
+        for (Candidate candidate : mCandidates) {
+            mEngine.addLearning(candidate);
+        }
+        mEngine.flushLearning();
+        mIndex = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() {
+        mEngine.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mDictionary.delete();
+    }
+
+    private int nextIndex(int size) {
+        mIndex = (mIndex + 1) % size;
+        return mIndex;
+    }
+
+    @Benchmark
+    public Candidate[] buildConversionCandidate() {
+        String input = mInputs.get(nextIndex(mInputs.size()));
+        return mEngine.buildConversionCandidate(input, input.length());
+    }
+
+    @Benchmark
+    public Set<Word> findWords() {
+        List<String> readings = mDictionary.readings;
+        return mEngine.findWords(readings.get(nextIndex(readings.size())));
+    }
+
+    // 学習辞書と予測辞書への書き込みまで含める
+    @Benchmark
+    public void addLearning() {
+        mEngine.addLearning(mCandidates.get(nextIndex(mCandidates.size())));
+        mEngine.flushLearning();
+    }
+
+    @Benchmark
+    public Candidate[] buildPredictionCandidate() {
+        return mEngine.buildPredictionCandidate(mCandidates.get(nextIndex(mCandidates.size())));
+    }
+}
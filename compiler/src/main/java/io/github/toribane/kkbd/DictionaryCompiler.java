@@ -0,0 +1,442 @@
+/*
+ * Copyright 2024 kachaya
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.toribane.kkbd;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import jdbm.RecordManager;
+import jdbm.RecordManagerFactory;
+import jdbm.RecordManagerOptions;
+import jdbm.btree.BTree;
+import jdbm.helper.StringComparator;
+import jdbm.helper.Tuple;
+import jdbm.helper.TupleBrowser;
+
+/**
+ * 辞書ソースからsystem_dicとconnectionを作る
+ * <p>
+ * 使い方: DictionaryCompiler 出力ディレクトリ 連接コスト表 辞書ソース... [--charset 文字コード] [--chunk 件数] [--legacy]
+ * <p>
+ * 辞書ソースはMozc形式(読み TAB lid TAB rid TAB cost TAB 表記)の.txtか、
+ * IPADIC形式(表記,lid,rid,cost,品詞...,読み,発音)の.csv、ディレクトリならその中の.txtと.csv全部
+ * 連接コスト表はMozcのconnection_single_column.txt(1行目が次元数、続いて1行に1つのコスト)か、
+ * MeCabのmatrix.def(1行目が左右の次元数、続いて 右文脈ID 左文脈ID コスト)
+ * <p>
+ * 読み込んだ語句はchunk件ずつ並列に並べ替えて一時ファイルに書き、最後にマージするので、
+ * 使うメモリは辞書の大きさによらない、同時に持つchunkはスレッド数+読み込み中の1つまで
+ * 語句はWordCodecで符号化する、--legacyならば以前の形式で書く
+ */
+public class DictionaryCompiler {
+    private static final String BTREE_NAME = "btree_dic";
+    private static final int DEFAULT_CHUNK_SIZE = 500_000;
+    private static final int COMMIT_INTERVAL = 10_000;  // 読みの数
+    private static final int LOOKUP_SAMPLES = 10_000;
+
+    // 読み、表記、lid、ridの順に並べて、同じものはコストの低いものが先
+    private static final Comparator<Word> ORDER = Comparator
+            .comparing((Word w) -> w.reading)
+            .thenComparing(w -> w.surface)
+            .thenComparingInt(w -> w.lid)
+            .thenComparingInt(w -> w.rid)
+            .thenComparingInt(w -> w.cost);
+
+    private final Charset mCharset;
+    private final int mChunkSize;
+    private final boolean mLegacyFormat;
+    private final ExecutorService mExecutor;
+    // 並べ替え待ちと並べ替え中のchunkの数を制限する
+    private final Semaphore mRunSlots;
+    private final List<Future<File>> mRuns = new ArrayList<>();
+    // 統計
+    private long mSourceEntries;
+    private long mSkippedLines;
+    private long mDuplicates;
+    private long mReadings;
+    private long mWords;
+    private int mMaxWordsPerReading;
+    private long mValueBytes;
+
+    public DictionaryCompiler(Charset charset, int chunkSize, boolean legacyFormat) {
+        mLegacyFormat = legacyFormat;
+        mCharset = charset;
+        mChunkSize = chunkSize;
+        int threads = Runtime.getRuntime().availableProcessors();
+        mExecutor = Executors.newFixedThreadPool(threads);
+        mRunSlots = new Semaphore(threads);
+    }
+
+    /**
+     * 連接コスト表を実行時の形式(次元数、右文脈ID×左文脈IDのコスト、すべてshort)で書き出す
+     */
+    public void compileConnection(File src, File dst) throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(src), StandardCharsets.UTF_8))) {
+            String[] header = reader.readLine().trim().split("\\s+");
+            int dim = Integer.parseInt(header[0]);
+            if (header.length > 1 && Integer.parseInt(header[1]) != dim) {
+                throw new IOException("left and right sizes differ: " + src);
+            }
+            short[] table = new short[dim * dim];
+            String line;
+            int index = 0;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (header.length > 1) {
+                    // matrix.def
+                    String[] ss = line.split("\\s+");
+                    table[Integer.parseInt(ss[0]) * dim + Integer.parseInt(ss[1])] = clamp(Integer.parseInt(ss[2]));
+                } else {
+                    table[index++] = clamp(Integer.parseInt(line));
+                }
+            }
+            try (DataOutputStream dos = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(dst)))) {
+                dos.writeShort(dim);
+                for (short cost : table) {
+                    dos.writeShort(cost);
+                }
+            }
+            System.out.printf("connection: dim=%d size=%d bytes%n", dim, dst.length());
+        }
+    }
+
+    private static short clamp(int cost) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, cost));
+    }
+
+    /**
+     * 辞書ソースを読み込んで、並べ替えた一時ファイルを作る
+     */
+    public void readSource(File src) throws IOException {
+        if (src.isDirectory()) {
+            File[] files = src.listFiles((dir, name) -> name.endsWith(".txt") || name.endsWith(".csv"));
+            if (files != null) {
+                Arrays.sort(files);
+                for (File file : files) {
+                    readSource(file);
+                }
+            }
+            return;
+        }
+        boolean csv = src.getName().endsWith(".csv");
+        List<Word> chunk = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(src), mCharset))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                Word word = csv ? parseIpadic(line) : parseMozc(line);
+                if (word == null) {
+                    mSkippedLines++;
+                    continue;
+                }
+                mSourceEntries++;
+                chunk.add(word);
+                if (chunk.size() >= mChunkSize) {
+                    submitRun(chunk);
+                    chunk = new ArrayList<>();
+                }
+            }
+        }
+        if (!chunk.isEmpty()) {
+            submitRun(chunk);
+        }
+    }
+
+    private static Word parseMozc(String line) {
+        String[] ss = line.split("\t");
+        if (ss.length < 5 || ss[0].isEmpty() || ss[4].isEmpty()) {
+            return null;
+        }
+        try {
+            return new Word(ss[0], Short.parseShort(ss[1]), Short.parseShort(ss[2]),
+                    clamp(Integer.parseInt(ss[3])), ss[4]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // IPADICの読みはカタカナなのでひらがなにする
+    private static Word parseIpadic(String line) {
+        String[] ss = line.split(",");
+        if (ss.length < 12 || ss[0].isEmpty() || ss[11].isEmpty() || ss[11].equals("*")) {
+            return null;
+        }
+        StringBuilder reading = new StringBuilder();
+        for (char c : ss[11].toCharArray()) {
+            reading.append((c >= 'ァ' && c <= 'ヶ') ? (char) (c - 'ァ' + 'ぁ') : c);
+        }
+        try {
+            return new Word(reading.toString(), Short.parseShort(ss[1]), Short.parseShort(ss[2]),
+                    clamp(Integer.parseInt(ss[3])), ss[0]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // 並べ替えと書き出しは別スレッドで行い、その間に次のchunkを読む
+    // スレッドがすべて使用中なら空くまで待つので、chunkがキューにたまらない
+    private void submitRun(List<Word> chunk) throws IOException {
+        try {
+            mRunSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        mRuns.add(mExecutor.submit(() -> {
+            try {
+                chunk.sort(ORDER);
+                File file = File.createTempFile("kkbd-run", ".bin");
+                file.deleteOnExit();
+                try (DataOutputStream dos = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(file)))) {
+                    for (Word w : chunk) {
+                        dos.writeUTF(w.reading);
+                        dos.writeShort(w.lid);
+                        dos.writeShort(w.rid);
+                        dos.writeShort(w.cost);
+                        dos.writeUTF(w.surface);
+                    }
+                }
+                return file;
+            } finally {
+                mRunSlots.release();
+            }
+        }));
+    }
+
+    /*
+     * 並べ替え済みの一時ファイルを1語ずつ読む
+     */
+    private static class Run {
+        private final DataInputStream mInput;
+        private final File mFile;
+        Word head;
+
+        Run(File file) throws IOException {
+            mFile = file;
+            mInput = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            advance();
+        }
+
+        void advance() throws IOException {
+            try {
+                String reading = mInput.readUTF();
+                short lid = mInput.readShort();
+                short rid = mInput.readShort();
+                short cost = mInput.readShort();
+                head = new Word(reading, lid, rid, cost, mInput.readUTF());
+            } catch (EOFException e) {
+                head = null;
+                mInput.close();
+                mFile.delete();
+            }
+        }
+    }
+
+    /**
+     * 一時ファイルをマージして重複を除き、読みごとにまとめてsystem_dicに書く
+     */
+    public void writeSystemDic(String path) throws IOException, ExecutionException, InterruptedException {
+        PriorityQueue<Run> queue = new PriorityQueue<>((a, b) -> ORDER.compare(a.head, b.head));
+        for (Future<File> future : mRuns) {
+            Run run = new Run(future.get());
+            if (run.head != null) {
+                queue.add(run);
+            }
+        }
+        mExecutor.shutdown();
+
+        Properties props = new Properties();
+        props.setProperty(RecordManagerOptions.DISABLE_TRANSACTIONS, "true");
+        RecordManager recman = RecordManagerFactory.createRecordManager(path, props);
+        BTree btree = BTree.createInstance(recman, new StringComparator());
+        recman.setNamedObject(BTREE_NAME, btree.getRecid());
+
+        List<Word> words = new ArrayList<>();
+        Word last = null;
+        while (!queue.isEmpty()) {
+            Run run = queue.poll();
+            Word word = run.head;
+            run.advance();
+            if (run.head != null) {
+                queue.add(run);
+            }
+            // 同じ語句はコストの低いものが先に来る
+            if (last != null && last.equals(word)) {
+                mDuplicates++;
+                continue;
+            }
+            if (!words.isEmpty() && !words.get(0).reading.equals(word.reading)) {
+                insert(btree, words);
+                words.clear();
+                if (mReadings % COMMIT_INTERVAL == 0) {
+                    recman.commit();
+                }
+            }
+            words.add(word);
+            last = word;
+        }
+        if (!words.isEmpty()) {
+            insert(btree, words);
+        }
+        recman.commit();
+        recman.close();
+    }
+
+    private void insert(BTree btree, List<Word> words) throws IOException {
+        byte[] value;
+        if (mLegacyFormat) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            for (Word w : words) {
+                dos.writeShort(w.lid);
+                dos.writeShort(w.rid);
+                dos.writeShort(w.cost);
+                dos.writeUTF(w.surface);
+            }
+            value = baos.toByteArray();
+        } else {
+            value = WordCodec.encode(words);
+        }
+        btree.insert(words.get(0).reading, value, true);
+        mReadings++;
+        mWords += words.size();
+        mMaxWordsPerReading = Math.max(mMaxWordsPerReading, words.size());
+        mValueBytes += value.length;
+    }
+
+    // できあがった辞書を実行時と同じように開き直して、読みを無作為に選んで検索時間を計る
+    private void measureLookup(String path) throws IOException {
+        Properties props = new Properties();
+        props.setProperty(RecordManagerOptions.DISABLE_TRANSACTIONS, "true");
+        RecordManager recman = RecordManagerFactory.createRecordManager(path, props);
+        BTree btree = BTree.load(recman, recman.getNamedObject(BTREE_NAME));
+        List<String> readings = new ArrayList<>();
+        Tuple tuple = new Tuple();
+        TupleBrowser browser = btree.browse();
+        Random random = new Random(1);
+        int step = (int) Math.max(1, mReadings / LOOKUP_SAMPLES);
+        while (browser.getNext(tuple)) {
+            if (random.nextInt(step) == 0) {
+                readings.add((String) tuple.getKey());
+            }
+        }
+        if (readings.isEmpty()) {
+            recman.close();
+            return;
+        }
+        // 1回目はファイルキャッシュを温める
+        for (String reading : readings) {
+            btree.find(reading);
+        }
+        long[] times = new long[readings.size()];
+        for (int i = 0; i < times.length; i++) {
+            long start = System.nanoTime();
+            btree.find(readings.get(i));
+            times[i] = System.nanoTime() - start;
+        }
+        recman.close();
+        Arrays.sort(times);
+        System.out.printf("lookup: samples=%d p50=%.1fus p95=%.1fus p99=%.1fus max=%.1fus%n",
+                times.length, times[times.length / 2] / 1000.0, times[(int) (times.length * 0.95)] / 1000.0,
+                times[(int) (times.length * 0.99)] / 1000.0, times[times.length - 1] / 1000.0);
+    }
+
+    private void printStats(File dbFile) {
+        System.out.printf("source: entries=%d skipped=%d duplicates=%d%n", mSourceEntries, mSkippedLines, mDuplicates);
+        System.out.printf("system_dic: readings=%d words=%d words/reading avg=%.2f max=%d%n",
+                mReadings, mWords, (mReadings == 0) ? 0.0 : (double) mWords / mReadings, mMaxWordsPerReading);
+        System.out.printf("system_dic: value=%d bytes file=%d bytes%n", mValueBytes, dbFile.length());
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> paths = new ArrayList<>();
+        Charset charset = StandardCharsets.UTF_8;
+        int chunkSize = DEFAULT_CHUNK_SIZE;
+        boolean legacyFormat = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--charset":
+                    charset = Charset.forName(args[++i]);
+                    break;
+                case "--chunk":
+                    chunkSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--legacy":
+                    legacyFormat = true;
+                    break;
+                default:
+                    paths.add(args[i]);
+            }
+        }
+        if (paths.size() < 3) {
+            System.err.println("usage: DictionaryCompiler <outDir> <connection> <source>... [--charset name] [--chunk n] [--legacy]");
+            System.exit(1);
+        }
+        File outDir = new File(paths.get(0));
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            throw new IOException("cannot create " + outDir);
+        }
+        File connection = new File(outDir, "connection");
+        File dbFile = new File(outDir, ConversionEngine.SYSTEM_DIC_NAME + ".db");
+        // 前回の出力に追加しないように消しておく
+        dbFile.delete();
+        new File(outDir, ConversionEngine.SYSTEM_DIC_NAME + ".lg").delete();
+
+        long start = System.nanoTime();
+        DictionaryCompiler compiler = new DictionaryCompiler(charset, chunkSize, legacyFormat);
+        compiler.compileConnection(new File(paths.get(1)), connection);
+        for (String path : paths.subList(2, paths.size())) {
+            compiler.readSource(new File(path));
+        }
+        compiler.writeSystemDic(new File(outDir, ConversionEngine.SYSTEM_DIC_NAME).getAbsolutePath());
+        System.out.printf("time: %.1fs%n", (System.nanoTime() - start) / 1e9);
+        compiler.printStats(dbFile);
+        compiler.measureLookup(new File(outDir, ConversionEngine.SYSTEM_DIC_NAME).getAbsolutePath());
+    }
+}
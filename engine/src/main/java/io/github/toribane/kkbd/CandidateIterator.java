@@ -0,0 +1,183 @@
+/*
+ * Copyright 2024 kachaya
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.toribane.kkbd;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * N-best探索を1候補ずつ進める
+ * 先頭に置く候補、コストの小さい経路の順に返し、経路をtailPosition個返したところで末尾に置く候補をはさむ
+ * 同じ候補は2回返さない
+ */
+public class CandidateIterator implements Iterator<Candidate> {
+    private final String mReading;
+    private final ConnectionTable mConnection;
+    private final List<List<Node>> mGraph;
+    private final PriorityQueue<Node> mQueue = new PriorityQueue<>();
+    private final ArrayDeque<Candidate> mHead = new ArrayDeque<>();
+    private final ArrayDeque<Candidate> mTail = new ArrayDeque<>();
+    private final int mTailPosition;
+    private final Set<Candidate> mSeen = new HashSet<>();
+    private int mCount;
+    private boolean mPathDone;
+    private Candidate mNext;
+
+    /**
+     * @param reading      読み
+     * @param graph        前向きDPまで済ませたグラフ
+     * @param connection   連接コスト表、なければnull
+     * @param head         最初に返す候補
+     * @param tail         全角英数などの候補
+     * @param tailPosition tailを返し始める位置
+     */
+    CandidateIterator(String reading, List<List<Node>> graph, ConnectionTable connection,
+                      Collection<Candidate> head, Collection<Candidate> tail, int tailPosition) {
+        mReading = reading;
+        mGraph = graph;
+        mConnection = connection;
+        mHead.addAll(head);
+        mTail.addAll(tail);
+        mTailPosition = tailPosition;
+        // まず、優先度キューにゴールノード(EOS)を挿入する
+        mQueue.add(graph.get(reading.length() + 1).get(0));
+    }
+
+    // 表示済みの候補は返さない
+    public void skip(Candidate[] candidates) {
+        for (Candidate candidate : candidates) {
+            mSeen.add(candidate);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (mNext == null) {
+            mNext = advance();
+        }
+        return mNext != null;
+    }
+
+    @Override
+    public Candidate next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Candidate candidate = mNext;
+        mNext = null;
+        return candidate;
+    }
+
+    /**
+     * 最大count個の候補を返す
+     *
+     * @param count 候補の数
+     * @return 候補、なくなったら短くなる
+     */
+    public List<Candidate> next(int count) {
+        List<Candidate> list = new ArrayList<>();
+        while (list.size() < count && hasNext()) {
+            list.add(next());
+        }
+        return list;
+    }
+
+    // まだ返していない末尾の候補を返す
+    public List<Candidate> drainTail() {
+        List<Candidate> list = new ArrayList<>();
+        if (mNext != null && mTail.contains(mNext)) {
+            list.add(mNext);
+            mNext = null;
+        }
+        while (!mTail.isEmpty()) {
+            Candidate candidate = mTail.poll();
+            if (mSeen.add(candidate)) {
+                mCount++;
+                list.add(candidate);
+            }
+        }
+        return list;
+    }
+
+    @Nullable
+    private Candidate advance() {
+        while (true) {
+            Candidate candidate;
+            if (!mHead.isEmpty()) {
+                candidate = mHead.poll();
+            } else if (!mTail.isEmpty() && (mCount >= mTailPosition || mPathDone)) {
+                candidate = mTail.poll();
+            } else if (!mPathDone) {
+                candidate = nextPath();
+                if (candidate == null) {
+                    mPathDone = true;
+                    continue;
+                }
+            } else {
+                return null;
+            }
+            if (mSeen.add(candidate)) {
+                mCount++;
+                return candidate;
+            }
+        }
+    }
+
+    // 優先度キューを使ってたどるノードを選んでいき、次にスタートノードまで届いた経路を返す
+    @Nullable
+    private Candidate nextPath() {
+        while (!mQueue.isEmpty()) {
+            Node node = mQueue.poll();
+            if (node.startPos == 0) {
+                // 取り出したノードがスタートノードであった場合、そのノードの経路を返す
+                ArrayList<Word> words = new ArrayList<>();
+                StringBuilder sbSurface = new StringBuilder();
+                // BOSとEOSは含まない
+                for (Node n = node.next; n.next != null; n = n.next) {
+                    sbSurface.append(n.word.surface);
+                    words.add(n.word);
+                }
+                // 経路は入力全体を覆うので読みは入力と同じ、1語ならば表記もその語句のものを共有する
+                String surface = (words.size() == 1) ? words.get(0).surface : sbSurface.toString();
+                return new Candidate(mReading, surface, words);
+            }
+            // スタートノードではなかった場合、そのノードに隣接するスタート側のノードのリストを取り出す
+            List<Node> prevNodes = mGraph.get(node.startPos - 1);
+            for (Node prevNode : prevNodes) {
+                // 優先度キューに追加するためコピーを作る
+                Node queueNode = new Node(prevNode);
+                int edgeCost = (mConnection != null) ? mConnection.getCost(queueNode.word, node.word) : 0;
+                queueNode.costToGoal = node.costToGoal + edgeCost + node.word.cost;
+                queueNode.next = node;
+                queueNode.prio = queueNode.costFromStart + queueNode.costToGoal;
+                // 優先度キューに追加
+                mQueue.add(queueNode);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2024 kachaya
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.toribane.kkbd;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 連接コスト表
+ * 先頭に次元数、続いて右文脈ID×左文脈IDのコストをshortで並べたもの
+ * 読み込み元があれば、メモリが足りないときに手放して次に使うときに読み直す
+ */
+public class ConnectionTable {
+
+    /**
+     * 連接コスト表の読み込み元
+     */
+    public interface Source {
+        InputStream open() throws IOException;
+    }
+
+    // 読み直しに失敗したら、この間隔をあけてから読み直す
+    private static final long RELOAD_RETRY_INTERVAL = 1_000_000_000L; // ns
+    private static final Logger LOG = Logger.getLogger(ConnectionTable.class.getName());
+
+    @Nullable
+    private final Source mSource;
+    // 手放しても次元数は変わらない
+    private final short mDim;
+    private volatile Table mTable;
+    private long mReloadRetryTime;
+    // 表が読み直せずにコストを0とした回数、変わっていればその間に作った結果は正しくない
+    private volatile int mFallbackCount;
+
+    public ConnectionTable(short dim, short[] table) {
+        mSource = null;
+        mDim = dim;
+        mTable = new Table(dim, table);
+    }
+
+    private ConnectionTable(Source source, Table table) {
+        mSource = source;
+        mDim = table.dim;
+        mTable = table;
+    }
+
+    public static ConnectionTable read(InputStream is) throws IOException {
+        Table table = readTable(is);
+        return new ConnectionTable(table.dim, table.costs);
+    }
+
+    /**
+     * 読み込み元から読み込む、release()の後は同じ読み込み元から読み直す
+     *
+     * @param source 読み込み元
+     */
+    public static ConnectionTable open(Source source) throws IOException {
+        return new ConnectionTable(source, readTable(source.open()));
+    }
+
+    private static Table readTable(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BufferedInputStream bis = new BufferedInputStream(is);
+
+        byte[] buf = new byte[16 * 1024];
+        int len;
+        while ((len = bis.read(buf, 0, buf.length)) > 0) {
+            baos.write(buf, 0, len);
+        }
+        bis.close();
+
+        ShortBuffer sb = ByteBuffer.wrap(baos.toByteArray()).asShortBuffer();
+        short dim = sb.get();
+        short[] table = new short[dim * dim];
+        sb.get(table);
+        return new Table(dim, table);
+    }
+
+    // 手放していれば読み直す、読めなければnullを返して少し後でまた読み直す
+    @Nullable
+    private synchronized Table load() {
+        Table table = mTable;
+        if (table != null || mSource == null) {
+            return table;
+        }
+        long now = System.nanoTime();
+        if (mReloadRetryTime != 0 && now - mReloadRetryTime < 0) {
+            mFallbackCount++;
+            return null;
+        }
+        try {
+            table = readTable(mSource.open());
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "connection table reload failed", e);
+            mReloadRetryTime = now + RELOAD_RETRY_INTERVAL;
+            mFallbackCount++;
+            return null;
+        }
+        if (table.dim != mDim) {
+            LOG.warning("connection table reload failed: dim " + table.dim + " != " + mDim);
+            mReloadRetryTime = now + RELOAD_RETRY_INTERVAL;
+            mFallbackCount++;
+            return null;
+        }
+        mReloadRetryTime = 0;
+        mTable = table;
+        return table;
+    }
+
+    // 読み込み元があれば表を手放す
+    public void release() {
+        if (mSource != null) {
+            mTable = null;
+        }
+    }
+
+    public short getDim() {
+        return mDim;
+    }
+
+    // コストを0とした回数、結果をキャッシュしてよいか前後で比べる
+    public int getFallbackCount() {
+        return mFallbackCount;
+    }
+
+    // ２つの語句間の連接コストを返す、表が読み直せなければ0とする
+    public int getCost(Word leftWord, Word rightWord) {
+        Table table = mTable;
+        if (table == null) {
+            table = load();
+            if (table == null) {
+                return 0;
+            }
+        }
+        return table.costs[leftWord.rid * table.dim + rightWord.lid];
+    }
+
+    private static class Table {
+        final short dim;
+        final short[] costs;
+
+        Table(short dim, short[] costs) {
+            this.dim = dim;
+            this.costs = costs;
+        }
+    }
+}
@@ -0,0 +1,1048 @@
+/*
+ * Copyright 2023-2024 kachaya
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.toribane.kkbd;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jdbm.RecordManager;
+import jdbm.RecordManagerFactory;
+import jdbm.RecordManagerOptions;
+import jdbm.btree.BTree;
+import jdbm.helper.Tuple;
+import jdbm.helper.TupleBrowser;
+
+/**
+ * 変換、予測、学習
+ * Androidに依存しないので端末以外でも動かせる
+ * 学習辞書と予測辞書はLearningStoreのスナップショットをロックなしで読む
+ * jdbmのRecordManagerはスレッドセーフではないので、システム辞書は読み込み専用に開いたものを
+ * スレッドごとに借りて使う
+ */
+public class ConversionEngine implements LearningStore.Listener, MemoryManager.Client {
+
+    private static final String BTREE_NAME = "btree_dic";
+    public static final String SYSTEM_DIC_NAME = "system_dic";
+    public static final String LEARNING_DIC_NAME = "learning_dic";
+    public static final String PREDICTION_DIC_NAME = "prediction_dic";
+    // 連語予測
+    private static final int PHRASE_MIN_WORDS = 2;
+    private static final int PHRASE_MAX_WORDS = 4;
+    private static final int PHRASE_BEAM_WIDTH = 4;
+    private static final int PHRASE_MAX_CANDIDATES = 8;
+    private static final int PHRASE_RANK_COST = 500;   // 予測辞書内の順位1つ分のコスト
+    private static final long PHRASE_TIME_LIMIT = 10_000_000L; // ns
+    private static final int PREDICTION_CACHE_SIZE = 32;
+    private static final int CONVERSION_CACHE_SIZE = 64;
+    private static final int CONVERSION_PAGE_SIZE = 20;  // 最初に作る変換候補の数、続きは必要になったら取り出す
+    private static final int RECENT_CANDIDATE_SIZE = 256;
+    private static final int STRING_POOL_SIZE = 16384;
+    // ストリーミング変換
+    private static final int STREAMING_WORD_LENGTH = 16;    // これより長い読みは確定位置をまたがないとみなす
+    private static final int STREAMING_WINDOW = 12;         // 変換する範囲の長さの目安
+    private static final int STREAMING_MAX_LENGTH = 24;     // 確定位置が決まらなくても固定を始める長さ
+    // 並列グラフ作成
+    private static final int PARALLEL_MIN_LENGTH = 8;   // これより短い入力は1スレッドで作る
+    private static final int PARALLEL_MAX_THREADS = 4;
+    // 辞書ファイルを置くディレクトリ
+    private final String mDicDirPath;
+    //
+    private LearningStore mLearningStore;
+    // 読み込み専用に開いたシステム辞書、使うスレッドが借りて返す
+    private final ConcurrentLinkedQueue<BTree> mSystemDicReaders = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<BTree, RecordManager> mSystemDicRecmans = new ConcurrentHashMap<>();
+    private BTree mWriterSystemDic; // 学習の書き込みスレッド専用
+    // 並列グラフ作成
+    private volatile boolean mParallelLattice;
+    private ForkJoinPool mLatticePool;
+    //
+    @Nullable
+    private final ConnectionTable mConnection;
+    //
+    private volatile boolean mConvertHalfKana;
+    private volatile boolean mConvertWideLatin;
+    // 枝刈り
+    private volatile Pruning mPruning;
+    // 直近に確定した語句の予測結果
+    private final ResultCache<String, PredictionResult> mPredictionCache = new ResultCache<>(PREDICTION_CACHE_SIZE);
+    // 変換結果、BackSpaceやカーソル移動で同じ状態に戻ったときに使う
+    private final ResultCache<ConversionKey, Candidate[]> mConversionCache = new ResultCache<>(CONVERSION_CACHE_SIZE);
+    // 読み全体に対して最後に確定した候補
+    private final ResultCache<String, Candidate> mRecentCandidates = new ResultCache<>(RECENT_CANDIDATE_SIZE);
+    // mRecentCandidatesを変えるたびに増やす、変換中に変わった結果はキャッシュしない
+    private final AtomicInteger mRecentVersion = new AtomicInteger();
+    // 辞書から読んだ文字列を変換結果やキャッシュの間で共有する
+    // キャッシュが小さいので重複はあまり残らず、今の辞書では使わない方が速い
+    private volatile StringPool mStringPool;
+    // 段階ごとの処理時間
+    private final LatencyRecorder mLatencyRecorder = new LatencyRecorder();
+
+    /**
+     * 辞書ディレクトリにはsystem_dic.dbを置いておく、学習辞書と予測辞書はなければ作る
+     *
+     * @param dicDirPath 辞書ファイルを置くディレクトリ
+     * @param connection 連接コスト表、読めなかったときはnull
+     */
+    public ConversionEngine(String dicDirPath, @Nullable ConnectionTable connection) {
+        mDicDirPath = dicDirPath.endsWith("/") ? dicDirPath : dicDirPath + "/";
+        mConnection = connection;
+        mPruning = new Pruning(0, 0);
+        try {
+            mLearningStore = new LearningStore(mDicDirPath + LEARNING_DIC_NAME,
+                    mDicDirPath + PREDICTION_DIC_NAME, this);
+        } catch (IOException e) {
+            mLearningStore = null;
+        }
+    }
+
+    public void setConvertHalfKana(boolean convertHalfKana) {
+        mConvertHalfKana = convertHalfKana;
+    }
+
+    public void setConvertWideLatin(boolean convertWideLatin) {
+        mConvertWideLatin = convertWideLatin;
+    }
+
+    public void setParallelLattice(boolean parallelLattice) {
+        mParallelLattice = parallelLattice;
+    }
+
+    /**
+     * 枝刈りの設定、0なら制限なし
+     *
+     * @param wordCount 1つの読みに対して残す語句の数
+     * @param beamWidth 1つの位置で終わるノードの数
+     */
+    public void setPruning(int wordCount, int beamWidth) {
+        mPruning = new Pruning(wordCount, beamWidth);
+        mConversionCache.clear();
+    }
+
+    // 文字列を共有するか、メモリ使用量を比べるためのもの
+    public void setStringPoolEnabled(boolean enabled) {
+        mStringPool = enabled ? new StringPool(STRING_POOL_SIZE) : null;
+    }
+
+    public LatencyRecorder getLatencyRecorder() {
+        return mLatencyRecorder;
+    }
+
+    // 学習の書き込みを待ってから辞書を閉じる、閉じた後は使えない
+    public void close() {
+        if (mLearningStore != null) {
+            mLearningStore.close();
+        }
+        synchronized (this) {
+            if (mLatticePool != null) {
+                mLatticePool.shutdown();
+            }
+        }
+        for (RecordManager recman : mSystemDicRecmans.values()) {
+            try {
+                recman.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * メモリが足りないときに縮小する、縮小したものは次に使うときに作り直す
+     * TRIM_SHRINK: キャッシュを半分にする
+     * TRIM_CLEAR: キャッシュを捨てて、学習の書き込みを済ませ、使っていないシステム辞書を閉じる
+     * TRIM_RELEASE: さらに並列グラフ作成のスレッド、連接コスト表、学習辞書と予測辞書の内容を手放す
+     */
+    @Override
+    public void onTrim(int level) {
+        if (level < MemoryManager.TRIM_CLEAR) {
+            mPredictionCache.trimToSize(PREDICTION_CACHE_SIZE / 2);
+            mConversionCache.trimToSize(CONVERSION_CACHE_SIZE / 2);
+            // 捨てた候補を先頭にした変換結果も捨てる
+            for (String reading : mRecentCandidates.trimToSize(RECENT_CANDIDATE_SIZE / 2)) {
+                invalidateRecentCandidate(reading);
+            }
+            return;
+        }
+        mPredictionCache.clear();
+        mConversionCache.clear();
+        // 確定した候補は学習で上位に来るので捨てても同じ候補が出る
+        mRecentCandidates.clear();
+        if (mStringPool != null) {
+            mStringPool = new StringPool(STRING_POOL_SIZE);
+        }
+        if (mLearningStore != null) {
+            // 書き込みスレッドのシステム辞書も返してもらう
+            mLearningStore.edit(editor -> {
+                releaseSystemDic(mWriterSystemDic);
+                mWriterSystemDic = null;
+            });
+            mLearningStore.flush();
+        }
+        closeIdleSystemDics();
+        if (level < MemoryManager.TRIM_RELEASE) {
+            return;
+        }
+        synchronized (this) {
+            if (mLatticePool != null) {
+                mLatticePool.shutdown();
+                mLatticePool = null;
+            }
+        }
+        if (mConnection != null) {
+            mConnection.release();
+        }
+        if (mLearningStore != null) {
+            mLearningStore.release();
+        }
+    }
+
+    // システム辞書を借りる、開けなければnull
+    @Nullable
+    private BTree acquireSystemDic() {
+        BTree btree = mSystemDicReaders.poll();
+        if (btree != null) {
+            return btree;
+        }
+        Properties props = new Properties();
+        props.setProperty(RecordManagerOptions.DISABLE_TRANSACTIONS, "true");
+        try {
+            RecordManager recman = RecordManagerFactory.createRecordManager(mDicDirPath + SYSTEM_DIC_NAME, props);
+            btree = BTree.load(recman, recman.getNamedObject(BTREE_NAME));
+            mSystemDicRecmans.put(btree, recman);
+            return btree;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void releaseSystemDic(@Nullable BTree btree) {
+        if (btree != null) {
+            mSystemDicReaders.offer(btree);
+        }
+    }
+
+    // 貸し出していないシステム辞書を閉じる
+    private void closeIdleSystemDics() {
+        BTree btree;
+        while ((btree = mSystemDicReaders.poll()) != null) {
+            RecordManager recman = mSystemDicRecmans.remove(btree);
+            if (recman == null) {
+                continue;
+            }
+            try {
+                recman.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private synchronized ForkJoinPool getLatticePool() {
+        if (mLatticePool == null) {
+            int threads = Math.min(PARALLEL_MAX_THREADS, Runtime.getRuntime().availableProcessors());
+            mLatticePool = new ForkJoinPool(threads);
+        }
+        return mLatticePool;
+    }
+
+    // ２つのノード間のエッジのコストを返す
+    private int getEdgeCost(Node leftNode, Node rightNode) {
+        return getEdgeCost(leftNode.word, rightNode.word);
+    }
+
+    // ２つの語句間の連接コストを返す、連接コスト表がなければ0
+    private int getEdgeCost(Word leftWord, Word rightWord) {
+        return (mConnection != null) ? mConnection.getCost(leftWord, rightWord) : 0;
+    }
+
+    // 連接コスト表がなければ-1、結果を作る前に取っておいてisConnectionIntact()で比べる
+    private int getConnectionState() {
+        return (mConnection != null) ? mConnection.getFallbackCount() : -1;
+    }
+
+    // 結果を作る間、連接コストが0にならなかったか
+    private boolean isConnectionIntact(int state) {
+        return state >= 0 && state == mConnection.getFallbackCount();
+    }
+
+    // 学習を反映したスナップショットに差し替わったので古い結果を捨てる
+    @Override
+    public void onPublished(Set<String> readings, Set<String> predictionKeys) {
+        for (String reading : readings) {
+            invalidateConversion(reading);
+        }
+        for (String key : predictionKeys) {
+            invalidatePrediction(key);
+        }
+    }
+
+    public void importLearningDictionary(ArrayList<String> entries) {
+        if (mLearningStore == null) {
+            return;
+        }
+        waitFor(mLearningStore.edit(editor -> {
+            for (String entry : entries) {
+                String[] ss = entry.split("\t");
+                if (ss.length < 2) {
+                    continue;
+                }
+                String key = ss[0];
+                for (int i = 1; i < ss.length; i++) {
+                    editor.addWord(new Word(key, ss[i]));
+                }
+            }
+        }));
+    }
+
+    public ArrayList<String> exportLearningDictionary() {
+        if (mLearningStore == null) {
+            return new ArrayList<>();
+        }
+        return mLearningStore.getSnapshot().exportWords();
+    }
+
+    public void deleteLearning(String key) {
+        // 削除した語句を含む確定候補も先頭に出さない
+        mRecentCandidates.removeIf((reading, candidate) -> reading.equals(key) || containsReading(candidate, key));
+        invalidateRecentCandidate(key);
+        if (mLearningStore == null) {
+            return;
+        }
+        waitFor(mLearningStore.edit(editor -> editor.removeWords(key)));
+    }
+
+    private static boolean containsReading(Candidate candidate, String reading) {
+        if (candidate.words == null) {
+            return false;
+        }
+        for (Word word : candidate.words) {
+            if (word.reading.equals(reading)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 学習辞書ツールからの操作は結果をすぐに表示するので書き込みを待つ
+    private static void waitFor(Future<?> future) {
+        try {
+            future.get();
+        } catch (ExecutionException | InterruptedException ignored) {
+        }
+    }
+
+    // 読みにreadingを含む変換結果をキャッシュから取り除く
+    private void invalidateConversion(String reading) {
+        mConversionCache.removeIf((key, candidates) -> key.reading.contains(reading));
+    }
+
+    // mRecentCandidatesのreadingを変えたので、作成中のものも含めて古い変換結果を使わない
+    private void invalidateRecentCandidate(String reading) {
+        synchronized (mConversionCache) {
+            mRecentVersion.incrementAndGet();
+            invalidateConversion(reading);
+        }
+    }
+
+    // 変換結果キャッシュの統計
+    public String getConversionCacheStats() {
+        return "hit=" + mConversionCache.hitCount()
+                + " miss=" + mConversionCache.missCount()
+                + " rate=" + mConversionCache.hitRate() + "%";
+    }
+
+    //
+    private static Set<Word> findWords(String key, @Nullable BTree btree, @Nullable StringPool pool) {
+        Set<Word> set = new HashSet<>();
+        if (btree == null) {
+            return set;
+        }
+        try {
+            byte[] byteArray = (byte[]) btree.find(key);
+            if (byteArray != null) {
+                WordCodec.decode(key, byteArray, set, pool);
+            }
+        } catch (IOException ignored) {
+        }
+        return set;
+    }
+
+    // keyで始まる見出し語があるか
+    private static boolean hasPrefix(String key, @Nullable BTree btree) {
+        if (btree == null) {
+            return false;
+        }
+        try {
+            Tuple tuple = new Tuple();
+            TupleBrowser browser = btree.browse(key);
+            if (browser.getNext(tuple)) {
+                return ((String) tuple.getKey()).startsWith(key);
+            }
+        } catch (IOException ignored) {
+        }
+        return false;
+    }
+
+    // 学習辞書とシステム辞書から語句を探す
+    public Set<Word> findWords(String key) {
+        Lookup lookup = openLookup(mPruning);
+        try {
+            return lookup.findWords(key);
+        } finally {
+            releaseSystemDic(lookup.systemDic);
+        }
+    }
+
+    // 選択された語句のコストを低くして次回の候補作成で先に現れるようにする
+    private void updateWordCost(LearningStore.Editor editor, Word selectWord) {
+        Set<Word> words = editor.findWords(selectWord.reading);
+        words.addAll(findWords(selectWord.reading, mWriterSystemDic, null));
+        Word bestWord = selectWord;
+        for (Word word : words) {
+            if (word.lid == selectWord.lid && word.rid == selectWord.rid) {
+                if (word.cost < bestWord.cost) {
+                    bestWord = word;
+                }
+            }
+        }
+        if (selectWord.cost != bestWord.cost) {
+            // コストを入れ替えて学習辞書に登録、スナップショットの語句は書き換えない
+            editor.addWord(new Word(bestWord.reading, bestWord.lid, bestWord.rid, selectWord.cost, bestWord.surface));
+            selectWord = new Word(selectWord.reading, selectWord.lid, selectWord.rid, bestWord.cost, selectWord.surface);
+        }
+        editor.addWord(selectWord);
+    }
+
+    // 予測辞書のキー、costは含めない
+    private static String getPredictionKey(Word word) {
+        return word.reading + "," + word.lid + "," + word.rid + "," + word.surface;
+    }
+
+    // 予測辞書
+    private void addPredictionWord(LearningStore.Editor editor, Word currWord, Word nextWord) {
+        // 読みに','を含むものは現行の辞書では対応できないが一文字の','だけなので問題ない
+        if (currWord.reading.contains(",") || nextWord.reading.contains(",")) {
+            return;
+        }
+        editor.addPredictionWord(getPredictionKey(currWord), nextWord);
+    }
+
+    // keyを参照した予測結果をキャッシュから取り除く
+    private void invalidatePrediction(String key) {
+        mPredictionCache.removeIf((k, result) -> result.keys.contains(key));
+    }
+
+    // Candidateから学習する、書き込みは学習用のスレッドで行う
+    public void addLearning(Candidate candidate) {
+        mRecentCandidates.put(candidate.reading, candidate);
+        invalidateRecentCandidate(candidate.reading);
+        if (candidate.words == null || mLearningStore == null) {
+            return;
+        }
+        mLearningStore.edit(editor -> {
+            if (mWriterSystemDic == null) {
+                mWriterSystemDic = acquireSystemDic();
+            }
+            for (Word word : candidate.words) {
+                // 語句のコストを調整
+                updateWordCost(editor, word);
+            }
+            // 予測辞書に登録
+            for (int i = 0; i < candidate.words.length - 1; i++) {
+                addPredictionWord(editor, candidate.words[i], candidate.words[i + 1]);
+            }
+        });
+    }
+
+    // 学習の書き込みが終わるまで待つ
+    public void flushLearning() {
+        if (mLearningStore != null) {
+            mLearningStore.flush();
+        }
+    }
+
+    public Candidate[] buildPredictionCandidate(Candidate candidate) {
+        if (candidate.words == null || mLearningStore == null) {
+            return new Candidate[0];
+        }
+        Word lastWord = candidate.words[candidate.words.length - 1];
+        String key = getPredictionKey(lastWord);
+        PredictionResult result = mPredictionCache.get(key);
+        if (result == null) {
+            LearningStore.Snapshot snapshot = mLearningStore.getSnapshot();
+            int connectionState = getConnectionState();
+            result = new PredictionResult();
+            result.keys.add(key);
+            Set<Candidate> set = new LinkedHashSet<>(); // 追加順保持
+            // 次の一語
+            List<Word> nextWords = snapshot.findPredictionWords(key);
+            for (Word word : nextWords) {
+                set.add(new Candidate(word));
+            }
+            // 連語
+            set.addAll(buildPhrasePrediction(snapshot, lastWord, nextWords, result.keys));
+            result.candidates = set.toArray(new Candidate[0]);
+            // 作成中に学習で差し替わっていたか、連接コストなしで作った結果はキャッシュしない
+            synchronized (mPredictionCache) {
+                if (mLearningStore.isCurrent(snapshot) && isConnectionIntact(connectionState)) {
+                    mPredictionCache.put(key, result);
+                }
+            }
+        }
+        return result.candidates;
+    }
+
+    /**
+     * 予測辞書の後続語を連鎖させて2～4語の連語候補を作る
+     * 予測辞書は出現回数ではなく新しい順に並んでいるので、順位を回数の代わりに使う
+     *
+     * @param snapshot  予測辞書
+     * @param lastWord  確定した最後の語句
+     * @param nextWords lastWordに続く語句
+     * @param keys      参照した予測辞書のキーを追加する
+     * @return スコアの良い順の連語候補
+     */
+    private List<Candidate> buildPhrasePrediction(LearningStore.Snapshot snapshot, Word lastWord, List<Word> nextWords, Set<String> keys) {
+        long deadline = System.nanoTime() + PHRASE_TIME_LIMIT;
+        List<Phrase> beam = new ArrayList<>();
+        for (int rank = 0; rank < nextWords.size(); rank++) {
+            Word word = nextWords.get(rank);
+            int score = rank * PHRASE_RANK_COST + getEdgeCost(lastWord, word);
+            beam.add(new Phrase(null, word, score));
+        }
+        List<Phrase> phrases = new ArrayList<>();
+        for (int length = PHRASE_MIN_WORDS; length <= PHRASE_MAX_WORDS; length++) {
+            beam.sort(null);
+            if (beam.size() > PHRASE_BEAM_WIDTH) {
+                beam = new ArrayList<>(beam.subList(0, PHRASE_BEAM_WIDTH));
+            }
+            List<Phrase> nextBeam = new ArrayList<>();
+            for (Phrase phrase : beam) {
+                if (System.nanoTime() > deadline) {
+                    break;
+                }
+                String key = getPredictionKey(phrase.word);
+                keys.add(key);
+                List<Word> words = snapshot.findPredictionWords(key);
+                for (int rank = 0; rank < words.size(); rank++) {
+                    Word word = words.get(rank);
+                    if (phrase.contains(word)) {
+                        continue;   // 同じ語句の繰り返しは避ける
+                    }
+                    int score = phrase.score + rank * PHRASE_RANK_COST + getEdgeCost(phrase.word, word);
+                    nextBeam.add(new Phrase(phrase, word, score));
+                }
+            }
+            if (nextBeam.isEmpty()) {
+                break;
+            }
+            phrases.addAll(nextBeam);
+            beam = nextBeam;
+        }
+        phrases.sort(null);
+        List<Candidate> list = new ArrayList<>();
+        for (Phrase phrase : phrases) {
+            if (list.size() >= PHRASE_MAX_CANDIDATES) {
+                break;
+            }
+            list.add(phrase.toCandidate());
+        }
+        return list;
+    }
+
+    // 読み全体に対して最後に確定した候補を返す、なければnull
+    @Nullable
+    public Candidate findRecentCandidate(CharSequence cs) {
+        return mRecentCandidates.get(cs.toString());
+    }
+
+    public Candidate[] buildConversionCandidate(CharSequence cs, int splitPos) {
+        String reading = cs.toString();
+        ConversionKey key = new ConversionKey(reading, splitPos, mConvertHalfKana, mConvertWideLatin);
+        Candidate[] candidates = mConversionCache.get(key);
+        if (candidates == null) {
+            int recentVersion = mRecentVersion.get();
+            int connectionState = getConnectionState();
+            Lookup lookup = openLookup(mPruning);
+            try {
+                candidates = convert(reading, splitPos, lookup);
+            } finally {
+                releaseSystemDic(lookup.systemDic);
+            }
+            // 作成中に学習で差し替わっていたか、連接コストなしで作った結果はキャッシュしない
+            synchronized (mConversionCache) {
+                if ((mLearningStore == null || mLearningStore.isCurrent(lookup.snapshot))
+                        && recentVersion == mRecentVersion.get() && isConnectionIntact(connectionState)) {
+                    mConversionCache.put(key, candidates);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    private Lookup openLookup(Pruning pruning) {
+        LearningStore.Snapshot snapshot = (mLearningStore != null) ? mLearningStore.getSnapshot() : null;
+        return new Lookup(snapshot, acquireSystemDic(), pruning);
+    }
+
+    private Candidate[] convert(String reading, int splitPos, Lookup lookup) {
+        CandidateIterator iterator = newCandidateIterator(reading, splitPos, lookup);
+        // 最初の候補一覧だけ取り出す、続きは必要になったらopenCandidateIterator()で取り出す
+        long start = mLatencyRecorder.begin(LatencyRecorder.PHASE_NBEST);
+        List<Candidate> list = iterator.next(CONVERSION_PAGE_SIZE);
+        mLatencyRecorder.end(LatencyRecorder.PHASE_NBEST, reading.length(), start);
+        list.addAll(iterator.drainTail());
+        return list.toArray(new Candidate[0]);
+    }
+
+    /**
+     * 表示済みの候補の続きを取り出すIteratorを返す
+     * グラフはここで作るので、取り出すときは辞書を検索しない
+     *
+     * @param cs       入力テキスト
+     * @param splitPos 区切り位置
+     * @param shown    表示済みの候補、これらは返さない
+     * @return 候補のIterator
+     */
+    public CandidateIterator openCandidateIterator(CharSequence cs, int splitPos, Candidate[] shown) {
+        String reading = cs.toString();
+        Lookup lookup = openLookup(mPruning);
+        CandidateIterator iterator;
+        try {
+            iterator = newCandidateIterator(reading, splitPos, lookup);
+        } finally {
+            releaseSystemDic(lookup.systemDic);
+        }
+        iterator.skip(shown);
+        return iterator;
+    }
+
+    private CandidateIterator newCandidateIterator(String reading, int splitPos, Lookup lookup) {
+        int len = reading.length();
+        List<Candidate> head = new ArrayList<>();
+        // 区切り位置を指定していなければ前回確定した候補を先頭にする
+        if (splitPos == len) {
+            Candidate recent = mRecentCandidates.get(reading);
+            if (recent != null) {
+                head.add(recent);
+            }
+        }
+        List<Candidate> tail = new ArrayList<>();
+        // 全角英数
+        if (mConvertWideLatin) {
+            String s = Converter.toWideLatin(reading);
+            if (!s.equals(reading)) {
+                tail.add(new Candidate(reading, s));
+            }
+        }
+        // 半角カナ
+        if (mConvertHalfKana) {
+            String s = Converter.toHalfKatakana(reading);
+            if (!s.equals(reading)) {
+                tail.add(new Candidate(reading, s));
+            }
+        }
+        // 前半はグラフを作って前向きDP、後半はIteratorが優先度キューを使ってたどるノードを選んでいく
+        List<List<Node>> graph = buildGraph(reading, splitPos, lookup);
+        return new CandidateIterator(reading, graph, mConnection, head, tail, CONVERSION_PAGE_SIZE);
+    }
+
+    /**
+     * 長い入力で、この後にどんな文字が続いても変わらない先頭部分を返す
+     * 新しい語句は末尾からSTREAMING_WORD_LENGTH文字以内で始まるので、その手前で終わる
+     * 全てのノードの最適経路が共通に通るノードまでは最良経路が変わらない
+     *
+     * @param cs 入力テキスト
+     * @return 確定してよい先頭部分、なければnull
+     */
+    @Nullable
+    public Candidate buildStreamingCandidate(CharSequence cs) {
+        String reading = cs.toString();
+        int len = reading.length();
+        if (len <= STREAMING_WINDOW) {
+            return null;
+        }
+        List<List<Node>> graph;
+        Lookup lookup = openLookup(mPruning);
+        try {
+            graph = buildGraph(reading, len, lookup);
+        } finally {
+            releaseSystemDic(lookup.systemDic);
+        }
+        // 末尾側の各ノードの最適経路が通るノードを数える
+        Map<Node, Integer> counts = new IdentityHashMap<>();
+        int frontier = 0;
+        for (int endPos = Math.max(0, len + 1 - STREAMING_WORD_LENGTH); endPos <= len; endPos++) {
+            for (Node node : graph.get(endPos)) {
+                if (node.startPos != 0 && node.prev == null) {
+                    continue;   // スタートからたどれないノード
+                }
+                frontier++;
+                for (Node n = node; n != null; n = n.prev) {
+                    counts.merge(n, 1, Integer::sum);
+                }
+            }
+        }
+        // 全ての経路が通るノードのうち最も後ろで終わるもの
+        Node stableNode = null;
+        for (Map.Entry<Node, Integer> entry : counts.entrySet()) {
+            Node node = entry.getKey();
+            if (node.startPos == 0 || entry.getValue() != frontier || getEndPos(node) >= len) {
+                continue;   // 入力の最後までは確定しない
+            }
+            if (stableNode == null || getEndPos(node) > getEndPos(stableNode)) {
+                stableNode = node;
+            }
+        }
+        if (stableNode == null && len > STREAMING_MAX_LENGTH) {
+            // 決まらないまま長くなったら最良経路の先頭部分を固定する
+            for (Node n = graph.get(len + 1).get(0).prev; n != null && n.startPos != 0; n = n.prev) {
+                if (getEndPos(n) <= len - STREAMING_WINDOW) {
+                    stableNode = n;
+                    break;
+                }
+            }
+        }
+        if (stableNode == null) {
+            return null;
+        }
+        ArrayList<Word> words = new ArrayList<>();
+        StringBuilder sbReading = new StringBuilder();
+        StringBuilder sbSurface = new StringBuilder();
+        for (Node n = stableNode; n.startPos != 0; n = n.prev) {
+            words.add(0, n.word);
+            sbReading.insert(0, n.word.reading);
+            sbSurface.insert(0, n.word.surface);
+        }
+        return new Candidate(sbReading.toString(), sbSurface.toString(), words);
+    }
+
+    // ノードが終わる位置
+    private static int getEndPos(Node node) {
+        return node.startPos + node.word.reading.length() - 1;
+    }
+
+    // startPos文字目から始まるノードを作る
+    private List<Node> findNodes(String str, int splitPos, int startPos, Lookup lookup) {
+        int len = str.length();
+        List<Node> nodes = new ArrayList<>();
+        for (int endPos = startPos; endPos <= len; endPos++) {
+            // 左右カーソルで区切を指定されていればそこをまたぐグラフは作らない
+            if (splitPos != len) {
+                if (startPos <= splitPos && endPos > splitPos) {
+                    continue;
+                }
+            }
+            String reading = str.substring(startPos - 1, endPos);
+            // 単語リストを探す
+            Set<Word> words = lookup.findWords(reading);
+            if (words.isEmpty()) {
+                // これより長い読みがなければこの開始位置は終わり
+                if (!lookup.hasPrefix(reading)) {
+                    break;
+                }
+                // 単語が見つからない場合は1文字を1単語となるダミーノードを登録する
+                continue;
+            }
+            for (Word word : lookup.pruneWords(words)) {
+                nodes.add(new Node(startPos, word));
+            }
+        }
+        return nodes;
+    }
+
+    // 開始位置ごとの検索を並列に行う、使えなければnull
+    @Nullable
+    private List<List<Node>> findNodesParallel(String str, int splitPos, Lookup lookup) {
+        List<Callable<List<Node>>> tasks = new ArrayList<>();
+        for (int startPos = 1; startPos <= str.length(); startPos++) {
+            int pos = startPos;
+            tasks.add(() -> {
+                // スナップショットは共有して、システム辞書はスレッドごとに借りる
+                BTree systemDic = acquireSystemDic();
+                try {
+                    return findNodes(str, splitPos, pos, new Lookup(lookup.snapshot, systemDic, lookup.pruning));
+                } finally {
+                    releaseSystemDic(systemDic);
+                }
+            });
+        }
+        List<List<Node>> nodesList = new ArrayList<>();
+        try {
+            for (Future<List<Node>> future : getLatticePool().invokeAll(tasks)) {
+                nodesList.add(future.get());
+            }
+        } catch (ExecutionException | InterruptedException e) {
+            return null;
+        }
+        return nodesList;
+    }
+
+    private List<List<Node>> buildGraph(String str, int splitPos, Lookup lookup) {
+        int len = str.length();
+        List<List<Node>> graph = new ArrayList<>();
+        for (int i = 0; i <= (len + 1); i++) {
+            graph.add(i, new ArrayList<>());
+        }
+        graph.get(0).add(new Node(0, Word.bos)); // BOS
+        graph.get(len + 1).add(new Node(len + 1, Word.eos)); // EOS
+
+        // endPos文字目で終わる単語リストを作成
+        long start = mLatencyRecorder.begin(LatencyRecorder.PHASE_LOOKUP);
+        List<List<Node>> nodesList = null;
+        if (mParallelLattice && len >= PARALLEL_MIN_LENGTH) {
+            nodesList = findNodesParallel(str, splitPos, lookup);
+        }
+        if (nodesList == null) {
+            nodesList = new ArrayList<>();
+            for (int startPos = 1; startPos <= len; startPos++) {
+                nodesList.add(findNodes(str, splitPos, startPos, lookup));
+            }
+        }
+        for (List<Node> nodes : nodesList) {
+            for (Node node : nodes) {
+                graph.get(getEndPos(node)).add(node);
+            }
+        }
+        mLatencyRecorder.end(LatencyRecorder.PHASE_LOOKUP, len, start);
+
+        // 前半はviterbiアルゴリズムで前向きDP
+        start = mLatencyRecorder.begin(LatencyRecorder.PHASE_VITERBI);
+        for (int endPos = 1; endPos <= len + 1; endPos++) {
+            // endPos文字目で終わるノードのリスト
+            List<Node> nodes = graph.get(endPos);
+            for (Node node : nodes) {
+                node.costFromStart = Integer.MAX_VALUE;
+                node.prev = null;
+                // このノードの開始位置の一つ前が終わりのノード
+                List<Node> prevNodes = graph.get(node.startPos - 1);
+                for (Node prevNode : prevNodes) {
+                    if (prevNode.costFromStart == Integer.MAX_VALUE) {
+                        continue;   // スタートからたどれないノード
+                    }
+                    int edgeCost = getEdgeCost(prevNode, node);
+                    int cost = prevNode.costFromStart + edgeCost + node.word.cost;
+                    if (cost < node.costFromStart) {
+                        node.costFromStart = cost;
+                        node.prev = prevNode;
+                    }
+                }
+            }
+            if (endPos <= len) {
+                pruneNodes(nodes, lookup.pruning.beamWidth);
+            }
+        }
+        mLatencyRecorder.end(LatencyRecorder.PHASE_VITERBI, len, start);
+        return graph;
+    }
+
+    // 同じ位置で終わるノードをスタートからのコストが低いものからbeamWidth個だけ残す
+    private static void pruneNodes(List<Node> nodes, int beamWidth) {
+        if (beamWidth <= 0 || nodes.size() <= beamWidth) {
+            return;
+        }
+        // スタートからたどれないノードは残しておくとコスト計算があふれるので除く
+        nodes.removeIf(node -> node.prev == null);
+        if (nodes.size() > beamWidth) {
+            nodes.sort((a, b) -> Integer.compare(a.costFromStart, b.costFromStart));
+            nodes.subList(beamWidth, nodes.size()).clear();
+        }
+    }
+
+    /**
+     * 枝刈りをした変換の最良経路が枝刈りなしと一致する割合を調べる
+     * 前回確定した候補や全角英数などの候補は枝刈りと関係なく同じになるので比べない
+     *
+     * @param readings 調べる読みのリスト
+     * @return 一致率(%)
+     */
+    public int measurePruningAgreement(List<String> readings) {
+        if (readings.isEmpty()) {
+            return 100;
+        }
+        Pruning pruning = mPruning;
+        Lookup full = openLookup(new Pruning(0, 0));
+        Lookup pruned = new Lookup(full.snapshot, full.systemDic, pruning);
+        int agree = 0;
+        try {
+            for (String reading : readings) {
+                if (Objects.equals(findBestPath(reading, full), findBestPath(reading, pruned))) {
+                    agree++;
+                }
+            }
+        } finally {
+            releaseSystemDic(full.systemDic);
+        }
+        return 100 * agree / readings.size();
+    }
+
+    // グラフの最良経路だけを候補にする、なければnull
+    @Nullable
+    private Candidate findBestPath(String reading, Lookup lookup) {
+        List<List<Node>> graph = buildGraph(reading, reading.length(), lookup);
+        CandidateIterator iterator = new CandidateIterator(reading, graph, mConnection,
+                Collections.emptyList(), Collections.emptyList(), CONVERSION_PAGE_SIZE);
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /*
+     * 枝刈りの設定、0なら制限なし
+     */
+    private static class Pruning {
+        public final int wordCount;     // 1つの読みに対して残す語句の数
+        public final int beamWidth;     // 1つの位置で終わるノードの数
+
+        public Pruning(int wordCount, int beamWidth) {
+            this.wordCount = wordCount;
+            this.beamWidth = beamWidth;
+        }
+    }
+
+    /*
+     * 1回の変換で使う辞書、学習辞書は変換の間同じスナップショットを見る
+     */
+    private class Lookup {
+        public final LearningStore.Snapshot snapshot;
+        public final BTree systemDic;
+        public final Pruning pruning;
+
+        public Lookup(LearningStore.Snapshot snapshot, BTree systemDic, Pruning pruning) {
+            this.snapshot = snapshot;
+            this.systemDic = systemDic;
+            this.pruning = pruning;
+        }
+
+        // 学習辞書とシステム辞書から語句を探す
+        public Set<Word> findWords(String key) {
+            Set<Word> set = (snapshot != null) ? snapshot.findWords(key) : new HashSet<>();
+            set.addAll(ConversionEngine.findWords(key, systemDic, mStringPool));
+            return set;
+        }
+
+        public boolean hasPrefix(String key) {
+            return (snapshot != null && snapshot.hasPrefix(key)) || ConversionEngine.hasPrefix(key, systemDic);
+        }
+
+        // コストの低いものからwordCount個だけ残す
+        public Collection<Word> pruneWords(Set<Word> words) {
+            if (pruning.wordCount <= 0 || words.size() <= pruning.wordCount) {
+                return words;
+            }
+            List<Word> list = new ArrayList<>(words);
+            list.sort(null);
+            return list.subList(0, pruning.wordCount);
+        }
+    }
+
+    /*
+     * 変換結果キャッシュのキー、変換設定も含める
+     */
+    private static class ConversionKey {
+        public final String reading;
+        public final int splitPos;
+        public final boolean halfKana;
+        public final boolean wideLatin;
+
+        public ConversionKey(String reading, int splitPos, boolean halfKana, boolean wideLatin) {
+            this.reading = reading;
+            this.splitPos = splitPos;
+            this.halfKana = halfKana;
+            this.wideLatin = wideLatin;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ConversionKey that = (ConversionKey) o;
+            return splitPos == that.splitPos && halfKana == that.halfKana && wideLatin == that.wideLatin && reading.equals(that.reading);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(reading, splitPos, halfKana, wideLatin);
+        }
+    }
+
+    /*
+     * 予測結果とその作成に参照した予測辞書のキー
+     */
+    private static class PredictionResult {
+        public Candidate[] candidates;
+        public final Set<String> keys = new HashSet<>();
+    }
+
+    /*
+     * 連語予測の途中経過、後ろから前へたどれる
+     */
+    private static class Phrase implements Comparable<Phrase> {
+        public final Phrase prev;
+        public final Word word;
+        public final int score;
+
+        public Phrase(Phrase prev, Word word, int score) {
+            this.prev = prev;
+            this.word = word;
+            this.score = score;
+        }
+
+        public boolean contains(Word w) {
+            for (Phrase p = this; p != null; p = p.prev) {
+                if (p.word.equals(w)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public Candidate toCandidate() {
+            ArrayList<Word> words = new ArrayList<>();
+            for (Phrase p = this; p != null; p = p.prev) {
+                words.add(0, p.word);
+            }
+            StringBuilder sbReading = new StringBuilder();
+            StringBuilder sbSurface = new StringBuilder();
+            for (Word w : words) {
+                sbReading.append(w.reading);
+                sbSurface.append(w.surface);
+            }
+            return new Candidate(sbReading.toString(), sbSurface.toString(), words);
+        }
+
+        @Override
+        public int compareTo(Phrase phrase) {
+            return Integer.compare(score, phrase.score);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2024 kachaya
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.toribane.kkbd;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * キー入力の記録
+ * 1行に1イベントで、経過時間(ms)、種類、引数をタブで区切る
+ * キーは処理の前に記録するので、確定(COMMIT)はそれを起こしたキーの後に並ぶ
+ * 先頭部分の自動確定(PREFIX)は、それを見つけた変換の元になったキーの後に並ぶ
+ */
+public class KeyTrace {
+    private static final String HEADER = "# kkbd key trace 1";
+
+    public static final String START = "s";         // 入力開始、引数はstreaming=0|1
+    public static final String CHARACTER = "c";     // 文字
+    public static final String STRING = "t";        // 文字列を直接コミット
+    public static final String BACKSPACE = "b";
+    public static final String ENTER = "e";
+    public static final String SPACE = "sp";
+    public static final String CURSOR_LEFT = "l";
+    public static final String CURSOR_RIGHT = "r";
+    public static final String SYMBOL = "y";        // シンボルキーボードに切り替え、入力中テキストはコミット
+    public static final String COMMIT = "m";        // 候補を確定、引数は候補の順位:表記
+    public static final String PREFIX = "p";        // 先頭部分を自動で確定、引数は読みの長さ:表記
+
+    /*
+     * 記録した1つのイベント
+     */
+    public static class Event {
+        public final long time;
+        public final String type;
+        public final String arg;
+
+        public Event(long time, String type, String arg) {
+            this.time = time;
+            this.type = type;
+            this.arg = arg;
+        }
+    }
+
+    public static List<Event> read(File file) throws IOException {
+        List<Event> events = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] ss = line.split("\t", 3);
+                if (ss.length < 2) {
+                    continue;
+                }
+                events.add(new Event(Long.parseLong(ss[0]), ss[1], (ss.length > 2) ? unescape(ss[2]) : ""));
+            }
+        }
+        return events;
+    }
+
+    // 引数の中のタブと改行を記録の区切りと区別する
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unescape(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char n = s.charAt(++i);
+                sb.append(n == 't' ? '\t' : n == 'n' ? '\n' : n);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /*
+     * ファイルの最後に追加していく
+     */
+    public static class Writer {
+        private final BufferedWriter mWriter;
+        private final long mStartTime;
+
+        public Writer(File file) throws IOException {
+            boolean exists = file.exists();
+            mWriter = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(file, true), StandardCharsets.UTF_8));
+            mStartTime = System.nanoTime();
+            if (!exists) {
+                mWriter.write(HEADER);
+                mWriter.newLine();
+            }
+        }
+
+        public void write(String type) {
+            write(type, "");
+        }
+
+        public void write(String type, String arg) {
+            try {
+                mWriter.write(Long.toString((System.nanoTime() - mStartTime) / 1_000_000));
+                mWriter.write('\t');
+                mWriter.write(type);
+                if (!arg.isEmpty()) {
+                    mWriter.write('\t');
+                    mWriter.write(escape(arg));
+                }
+                mWriter.newLine();
+            } catch (IOException ignored) {
+            }
+        }
+
+        public void close() {
+            try {
+                mWriter.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2024 kachaya
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.toribane.kkbd;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * マイクロ秒単位の処理時間の分布
+ * 2のべき乗ごとの区間をさらに8つに分けて数えるので、誤差は1/8以内
+ * 記録は配列の1要素を増やすだけでメモリを確保しない
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 30;    // 約17分
+    private static final int BUCKET_COUNT = SUB_COUNT + (MAX_EXPONENT - SUB_BITS + 1) * SUB_COUNT;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+
+    private static int bucketIndex(long us) {
+        if (us < SUB_COUNT) {
+            return (int) Math.max(0, us);
+        }
+        int exponent = Math.min(MAX_EXPONENT, 63 - Long.numberOfLeadingZeros(us));
+        int sub = (int) (us >> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return SUB_COUNT + (exponent - SUB_BITS) * SUB_COUNT + sub;
+    }
+
+    // 区間の上限
+    private static long bucketValue(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int exponent = (index - SUB_COUNT) / SUB_COUNT + SUB_BITS;
+        int sub = (index - SUB_COUNT) % SUB_COUNT;
+        return ((long) (SUB_COUNT + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    public void record(long us) {
+        mCounts.incrementAndGet(bucketIndex(us));
+    }
+
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mCounts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @param percent 0～100
+     * @return percent%の記録がこの時間(us)以下、記録がなければ0
+     */
+    public long percentile(double percent) {
+        long count = count();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(count * percent / 100));
+        long sum = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            sum += mCounts.get(i);
+            if (sum >= target) {
+                return bucketValue(i);
+            }
+        }
+        return bucketValue(BUCKET_COUNT - 1);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2024 kachaya
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.toribane.kkbd;
+
+import androidx.annotation.Nullable;
+
+/**
+ * キー入力1回の処理を段階ごとに計る
+ * 段階ごと、入力の長さごとにLatencyHistogramに記録する
+ * 無効のときはbegin()がフラグを見るだけなので、計測点を残したままでよい
+ */
+public class LatencyRecorder {
+    public static final int PHASE_KEY = 0;          // handleCharacter全体
+    public static final int PHASE_LOOKUP = 1;       // グラフ作成の辞書検索
+    public static final int PHASE_VITERBI = 2;      // グラフ作成の前向きDP
+    public static final int PHASE_NBEST = 3;        // 後ろ向きにN-best候補を取り出す
+    public static final int PHASE_CANDIDATE = 4;    // 候補ビューの作成
+    public static final int PHASE_COMPOSING = 5;    // 入力中テキストをアプリに送る
+    public static final int PHASE_COUNT = 6;
+    private static final String[] PHASE_NAMES = {
+            "handleCharacter",
+            "buildGraph.lookup",
+            "buildGraph.viterbi",
+            "nbest",
+            "setCandidateText",
+            "icSetComposingText",
+    };
+    // 入力の長さの区分、最後は全体
+    private static final int[] LENGTH_LIMITS = {4, 8, 16, Integer.MAX_VALUE};
+    private static final String[] LENGTH_LABELS = {"1-4文字", "5-8文字", "9-16文字", "17文字-", "全体"};
+
+    /**
+     * systraceやperfettoに区間を出す
+     */
+    public interface Tracer {
+        void beginSection(String name);
+
+        void endSection();
+    }
+
+    private final LatencyHistogram[][] mHistograms = new LatencyHistogram[PHASE_COUNT][LENGTH_LABELS.length];
+    private volatile boolean mEnabled;
+    @Nullable
+    private volatile Tracer mTracer;
+
+    public LatencyRecorder() {
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            for (int j = 0; j < LENGTH_LABELS.length; j++) {
+                mHistograms[i][j] = new LatencyHistogram();
+            }
+        }
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void setTracer(@Nullable Tracer tracer) {
+        mTracer = tracer;
+    }
+
+    /**
+     * @return end()に渡す開始時刻、無効なら0
+     */
+    public long begin(int phase) {
+        if (!mEnabled) {
+            return 0;
+        }
+        Tracer tracer = mTracer;
+        if (tracer != null) {
+            tracer.beginSection(PHASE_NAMES[phase]);
+        }
+        return System.nanoTime();
+    }
+
+    public void end(int phase, int length, long start) {
+        if (start == 0) {
+            return;
+        }
+        long us = (System.nanoTime() - start) / 1000;
+        Tracer tracer = mTracer;
+        if (tracer != null) {
+            tracer.endSection();
+        }
+        int index = 0;
+        while (length > LENGTH_LIMITS[index]) {
+            index++;
+        }
+        mHistograms[phase][index].record(us);
+        mHistograms[phase][LENGTH_LIMITS.length].record(us);
+    }
+
+    public static String getPhaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+    public static int getLengthCount() {
+        return LENGTH_LABELS.length;
+    }
+
+    public static String getLengthLabel(int index) {
+        return LENGTH_LABELS[index];
+    }
+
+    public LatencyHistogram getHistogram(int phase, int lengthIndex) {
+        return mHistograms[phase][lengthIndex];
+    }
+
+    public void reset() {
+        for (LatencyHistogram[] histograms : mHistograms) {
+            for (LatencyHistogram histogram : histograms) {
+                histogram.reset();
+            }
+        }
+    }
+}
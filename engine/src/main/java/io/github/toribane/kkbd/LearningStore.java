@@ -0,0 +1,485 @@
+/*
+ * Copyright 2024 kachaya
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.toribane.kkbd;
+
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import jdbm.RecordManager;
+import jdbm.RecordManagerFactory;
+import jdbm.btree.BTree;
+import jdbm.helper.StringComparator;
+import jdbm.helper.Tuple;
+import jdbm.helper.TupleBrowser;
+
+/**
+ * 学習辞書と予測辞書
+ * 読み込みは不変のスナップショットに対してロックなしで行う
+ * 書き込みは専用のスレッドでjdbmに書いてから新しいスナップショットに差し替える
+ * スナップショットは共有する基本部分と小さな差分からなり、差分が大きくなったら基本部分にまとめる
+ */
+public class LearningStore {
+
+    private static final String BTREE_NAME = "btree_dic";
+    // 差分がこの数を超えたら基本部分にまとめる
+    private static final int MAX_DELTA_SIZE = 256;
+    // 差分で削除した読みを表す
+    private static final Word[] REMOVED = new Word[0];
+
+    /**
+     * 新しいスナップショットに差し替えたときに呼ばれる
+     */
+    public interface Listener {
+        void onPublished(Set<String> readings, Set<String> predictionKeys);
+    }
+
+    /**
+     * 書き込みスレッドで実行する編集内容
+     */
+    public interface Action {
+        void edit(Editor editor);
+    }
+
+    private final RecordManager mRecmanLearningDic;
+    private BTree mBTreeLearningDic;
+    private final RecordManager mRecmanPredictionDic;
+    private BTree mBTreePredictionDic;
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+    private final Listener mListener;
+    // release()で手放したらnull、次に使うときにjdbmから読み直す
+    private volatile Snapshot mSnapshot;
+
+    public LearningStore(String learningDicPath, String predictionDicPath, Listener listener) throws IOException {
+        mListener = listener;
+        mRecmanLearningDic = RecordManagerFactory.createRecordManager(learningDicPath);
+        mBTreeLearningDic = loadBTree(mRecmanLearningDic);
+        mRecmanPredictionDic = RecordManagerFactory.createRecordManager(predictionDicPath);
+        mBTreePredictionDic = loadBTree(mRecmanPredictionDic);
+        mSnapshot = readSnapshot();
+    }
+
+    private static BTree loadBTree(RecordManager recman) throws IOException {
+        long recid = recman.getNamedObject(BTREE_NAME);
+        if (recid != 0) {
+            return BTree.load(recman, recid);
+        }
+        BTree btree = BTree.createInstance(recman, new StringComparator());
+        recman.setNamedObject(BTREE_NAME, btree.getRecid());
+        recman.commit();
+        return btree;
+    }
+
+    // jdbmから全体を読む、読めなかったものは空とする
+    private Snapshot readSnapshot() {
+        TreeMap<String, Word[]> words = new TreeMap<>();
+        HashMap<String, Word[]> predictions = new HashMap<>();
+        try {
+            Tuple tuple = new Tuple();
+            TupleBrowser browser = mBTreeLearningDic.browse();
+            while (browser.getNext(tuple)) {
+                String reading = (String) tuple.getKey();
+                words.put(reading, decodeWords(reading, (byte[]) tuple.getValue()));
+            }
+            browser = mBTreePredictionDic.browse();
+            while (browser.getNext(tuple)) {
+                predictions.put((String) tuple.getKey(), decodePredictions((String) tuple.getValue()));
+            }
+        } catch (IOException ignored) {
+        }
+        return new Snapshot(words, predictions, new TreeMap<>(), new HashMap<>());
+    }
+
+    // 学習辞書の値: lid,rid,cost,surfaceの繰り返し
+    private static Word[] decodeWords(String reading, byte[] byteArray) throws IOException {
+        List<Word> list = new ArrayList<>();
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(byteArray));
+        while (dis.available() > 0) {
+            short lid = dis.readShort();
+            short rid = dis.readShort();
+            short cost = dis.readShort();
+            String surface = dis.readUTF();
+            list.add(new Word(reading, lid, rid, cost, surface));
+        }
+        return list.toArray(new Word[0]);
+    }
+
+    private static byte[] encodeWords(Word[] words) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        for (Word w : words) {
+            dos.writeShort(w.lid);
+            dos.writeShort(w.rid);
+            dos.writeShort(w.cost);
+            dos.writeUTF(w.surface);
+        }
+        return baos.toByteArray();
+    }
+
+    // 予測辞書の値: reading,lid,rid,cost,surfaceをタブ区切りで新しい順に並べる
+    private static Word[] decodePredictions(String values) {
+        List<Word> list = new ArrayList<>();
+        for (String value : values.split("\t")) {
+            list.add(new Word(value));
+        }
+        return list.toArray(new Word[0]);
+    }
+
+    private static String encodePredictions(Word[] words) {
+        StringBuilder sb = new StringBuilder();
+        for (Word w : words) {
+            if (sb.length() != 0) {
+                sb.append("\t");
+            }
+            sb.append(w.toString());
+        }
+        return sb.toString();
+    }
+
+    public Snapshot getSnapshot() {
+        Snapshot snapshot = mSnapshot;
+        return (snapshot != null) ? snapshot : loadSnapshot();
+    }
+
+    // 今のスナップショットか、手放していれば読み直さずにfalse
+    public boolean isCurrent(Snapshot snapshot) {
+        return snapshot == mSnapshot;
+    }
+
+    // jdbmの読み書きは排他する
+    private synchronized Snapshot loadSnapshot() {
+        if (mSnapshot == null) {
+            mSnapshot = readSnapshot();
+        }
+        return mSnapshot;
+    }
+
+    // スナップショットを手放す、使っているところがあればそれが終わるまでは残る
+    public synchronized void release() {
+        mSnapshot = null;
+    }
+
+    /**
+     * 書き込みスレッドで編集して、終わったら新しいスナップショットに差し替える
+     *
+     * @param action 編集内容
+     * @return 差し替えまで終わると完了するFuture
+     */
+    public Future<?> edit(Action action) {
+        return mWriter.submit(() -> apply(action));
+    }
+
+    // 書き込み待ちがなくなるまで待つ
+    public void flush() {
+        try {
+            mWriter.submit(() -> {
+            }).get();
+        } catch (ExecutionException | InterruptedException ignored) {
+        }
+    }
+
+    // 書き込みを終えてから辞書を閉じる
+    public void close() {
+        mWriter.shutdown();
+        try {
+            mWriter.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            mRecmanLearningDic.close();
+            mRecmanPredictionDic.close();
+        } catch (IOException | InterruptedException ignored) {
+        }
+    }
+
+    private void apply(Action action) {
+        Set<String> readings = Collections.emptySet();
+        Set<String> keys = Collections.emptySet();
+        synchronized (this) {
+            Snapshot base = loadSnapshot();
+            Editor editor = new Editor(base);
+            action.edit(editor);
+            if (editor.mChangedReadings.isEmpty() && editor.mChangedKeys.isEmpty()) {
+                return;
+            }
+            // jdbmに書けたものだけを新しいスナップショットに入れる
+            TreeMap<String, Word[]> wordDelta = base.mWordDelta;
+            Map<String, Word[]> predictionDelta = base.mPredictionDelta;
+            if (!editor.mChangedReadings.isEmpty() && writeWords(editor)) {
+                wordDelta = editor.mWordDelta;
+                readings = editor.mChangedReadings;
+            }
+            if (!editor.mChangedKeys.isEmpty() && writePredictions(editor)) {
+                predictionDelta = editor.mPredictionDelta;
+                keys = editor.mChangedKeys;
+            }
+            if (readings.isEmpty() && keys.isEmpty()) {
+                return;
+            }
+            Snapshot snapshot = new Snapshot(base.mWords, base.mPredictions, wordDelta, predictionDelta);
+            if (snapshot.mWordDelta.size() + snapshot.mPredictionDelta.size() > MAX_DELTA_SIZE) {
+                snapshot = snapshot.compact();
+            }
+            mSnapshot = snapshot;
+        }
+        mListener.onPublished(readings, keys);
+    }
+
+    // 学習辞書に書き込む、失敗したら書き込み前に戻してfalse
+    private boolean writeWords(Editor editor) {
+        try {
+            for (String reading : editor.mChangedReadings) {
+                Word[] words = editor.getWords(reading);
+                if (words == null) {
+                    mBTreeLearningDic.remove(reading);
+                } else {
+                    mBTreeLearningDic.insert(reading, encodeWords(words), true);
+                }
+            }
+            mRecmanLearningDic.commit();
+            return true;
+        } catch (IOException e) {
+            mBTreeLearningDic = rollback(mRecmanLearningDic, mBTreeLearningDic);
+            return false;
+        }
+    }
+
+    // 予測辞書に書き込む、失敗したら書き込み前に戻してfalse
+    private boolean writePredictions(Editor editor) {
+        try {
+            for (String key : editor.mChangedKeys) {
+                mBTreePredictionDic.insert(key, encodePredictions(editor.getPredictions(key)), true);
+            }
+            mRecmanPredictionDic.commit();
+            return true;
+        } catch (IOException e) {
+            mBTreePredictionDic = rollback(mRecmanPredictionDic, mBTreePredictionDic);
+            return false;
+        }
+    }
+
+    // BTreeはメモリ上にも状態を持つので読み直す
+    private static BTree rollback(RecordManager recman, BTree btree) {
+        try {
+            recman.rollback();
+            return BTree.load(recman, recman.getNamedObject(BTREE_NAME));
+        } catch (IOException e) {
+            return btree;
+        }
+    }
+
+    /*
+     * ある時点の学習辞書と予測辞書、作成後は変更しない
+     * 基本部分は複数のスナップショットで共有し、差分を優先して読む
+     */
+    public static class Snapshot {
+        private final TreeMap<String, Word[]> mWords;
+        private final Map<String, Word[]> mPredictions;
+        private final TreeMap<String, Word[]> mWordDelta;
+        private final Map<String, Word[]> mPredictionDelta;
+
+        private Snapshot(TreeMap<String, Word[]> words, Map<String, Word[]> predictions,
+                         TreeMap<String, Word[]> wordDelta, Map<String, Word[]> predictionDelta) {
+            mWords = words;
+            mPredictions = predictions;
+            mWordDelta = wordDelta;
+            mPredictionDelta = predictionDelta;
+        }
+
+        // 差分を基本部分にまとめたスナップショットを作る
+        private Snapshot compact() {
+            TreeMap<String, Word[]> words = new TreeMap<>(mWords);
+            for (Map.Entry<String, Word[]> entry : mWordDelta.entrySet()) {
+                if (entry.getValue() == REMOVED) {
+                    words.remove(entry.getKey());
+                } else {
+                    words.put(entry.getKey(), entry.getValue());
+                }
+            }
+            Map<String, Word[]> predictions = new HashMap<>(mPredictions);
+            predictions.putAll(mPredictionDelta);
+            return new Snapshot(words, predictions, new TreeMap<>(), new HashMap<>());
+        }
+
+        @Nullable
+        private Word[] getWords(String reading) {
+            Word[] words = mWordDelta.get(reading);
+            if (words == null) {
+                words = mWords.get(reading);
+            }
+            return (words == REMOVED) ? null : words;
+        }
+
+        // 読みに対する語句、呼び出し側で追加できるように新しいSetを返す
+        public Set<Word> findWords(String reading) {
+            Word[] words = getWords(reading);
+            if (words == null) {
+                return new HashSet<>();
+            }
+            return new HashSet<>(Arrays.asList(words));
+        }
+
+        // keyで始まる読みがあるか
+        public boolean hasPrefix(String key) {
+            for (Map.Entry<String, Word[]> entry : mWordDelta.tailMap(key, true).entrySet()) {
+                if (!entry.getKey().startsWith(key)) {
+                    break;
+                }
+                if (entry.getValue() != REMOVED) {
+                    return true;
+                }
+            }
+            for (String reading : mWords.tailMap(key, true).keySet()) {
+                if (!reading.startsWith(key)) {
+                    break;
+                }
+                if (mWordDelta.get(reading) != REMOVED) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // 予測辞書から次に続く語句を探す、新しく登録されたものが先頭
+        public List<Word> findPredictionWords(String key) {
+            Word[] words = mPredictionDelta.get(key);
+            if (words == null) {
+                words = mPredictions.get(key);
+            }
+            if (words == null) {
+                return Collections.emptyList();
+            }
+            return Arrays.asList(words);
+        }
+
+        // 読み<TAB>lid,rid,cost,surface<TAB>...の形式で書き出す
+        public ArrayList<String> exportWords() {
+            ArrayList<String> list = new ArrayList<>();
+            for (Map.Entry<String, Word[]> entry : compact().mWords.entrySet()) {
+                StringBuilder sb = new StringBuilder(entry.getKey());
+                for (Word w : entry.getValue()) {
+                    sb.append("\t").append(w.getValue());
+                }
+                list.add(sb.toString());
+            }
+            return list;
+        }
+    }
+
+    /*
+     * 書き込みスレッドでの編集、最初に変更するときにスナップショットの差分だけを複製する
+     */
+    public static class Editor {
+        private final Snapshot mBase;
+        private TreeMap<String, Word[]> mWordDelta;
+        private Map<String, Word[]> mPredictionDelta;
+        private final Set<String> mChangedReadings = new HashSet<>();
+        private final Set<String> mChangedKeys = new HashSet<>();
+
+        private Editor(Snapshot base) {
+            mBase = base;
+            mWordDelta = base.mWordDelta;
+            mPredictionDelta = base.mPredictionDelta;
+        }
+
+        @Nullable
+        private Word[] getWords(String reading) {
+            Word[] words = mWordDelta.get(reading);
+            if (words == null) {
+                words = mBase.mWords.get(reading);
+            }
+            return (words == REMOVED) ? null : words;
+        }
+
+        @Nullable
+        private Word[] getPredictions(String key) {
+            Word[] words = mPredictionDelta.get(key);
+            return (words != null) ? words : mBase.mPredictions.get(key);
+        }
+
+        // 編集途中の内容から語句を探す
+        public Set<Word> findWords(String reading) {
+            Word[] words = getWords(reading);
+            if (words == null) {
+                return new HashSet<>();
+            }
+            return new HashSet<>(Arrays.asList(words));
+        }
+
+        // 語句を追加する、同じ語句があればコストを置き換える
+        public void addWord(Word word) {
+            Set<Word> set = new LinkedHashSet<>();
+            // 今回の語句を最初に追加しておく
+            set.add(word);
+            Word[] words = getWords(word.reading);
+            if (words != null) {
+                set.addAll(Arrays.asList(words));
+            }
+            if (mWordDelta == mBase.mWordDelta) {
+                mWordDelta = new TreeMap<>(mBase.mWordDelta);
+            }
+            mWordDelta.put(word.reading, set.toArray(new Word[0]));
+            mChangedReadings.add(word.reading);
+        }
+
+        public void removeWords(String reading) {
+            if (getWords(reading) == null) {
+                return;
+            }
+            if (mWordDelta == mBase.mWordDelta) {
+                mWordDelta = new TreeMap<>(mBase.mWordDelta);
+            }
+            if (mBase.mWords.containsKey(reading)) {
+                mWordDelta.put(reading, REMOVED);
+            } else {
+                mWordDelta.remove(reading);
+            }
+            mChangedReadings.add(reading);
+        }
+
+        // 次に続く語句を先頭に追加する
+        public void addPredictionWord(String key, Word nextWord) {
+            Set<Word> set = new LinkedHashSet<>();  // 追加順を保持
+            set.add(nextWord);
+            Word[] words = getPredictions(key);
+            if (words != null) {
+                set.addAll(Arrays.asList(words));
+            }
+            if (mPredictionDelta == mBase.mPredictionDelta) {
+                mPredictionDelta = new HashMap<>(mBase.mPredictionDelta);
+            }
+            mPredictionDelta.put(key, set.toArray(new Word[0]));
+            mChangedKeys.add(key);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2024 kachaya
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.toribane.kkbd;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * メモリが足りなくなったときに登録したものを縮小する
+ * 縮小したものは次に使うときに作り直す
+ */
+public class MemoryManager {
+
+    // キャッシュを小さくする
+    public static final int TRIM_SHRINK = 1;
+    // キャッシュを捨てて、学習の書き込みを済ませる
+    public static final int TRIM_CLEAR = 2;
+    // 作り直せるものはすべて手放す
+    public static final int TRIM_RELEASE = 3;
+
+    /**
+     * 縮小するもの
+     */
+    public interface Client {
+        void onTrim(int level);
+    }
+
+    private final CopyOnWriteArrayList<Client> mClients = new CopyOnWriteArrayList<>();
+
+    public void register(Client client) {
+        mClients.addIfAbsent(client);
+    }
+
+    public void unregister(Client client) {
+        mClients.remove(client);
+    }
+
+    /**
+     * 登録されたものをlevelに応じて縮小する
+     *
+     * @param level TRIM_SHRINK, TRIM_CLEAR, TRIM_RELEASEのどれか
+     */
+    public void trim(int level) {
+        for (Client client : mClients) {
+            client.onTrim(level);
+        }
+    }
+}
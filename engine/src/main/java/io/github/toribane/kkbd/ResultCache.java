@@ -0,0 +1,101 @@
+/*
+ * Copyright 2024 kachaya
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.toribane.kkbd;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiPredicate;
+
+/**
+ * 最近使ったものを残す固定サイズのキャッシュ
+ * 複数のスレッドから使えるようにメソッドは排他する
+ */
+public class ResultCache<K, V> {
+    private final int mMaxSize;
+    private final LinkedHashMap<K, V> mMap;
+    private int mHitCount;
+    private int mMissCount;
+
+    public ResultCache(int maxSize) {
+        mMaxSize = maxSize;
+        mMap = new LinkedHashMap<K, V>(maxSize + 1, 1.0f, true) {  // アクセス順
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > mMaxSize;
+            }
+        };
+    }
+
+    public synchronized V get(K key) {
+        V value = mMap.get(key);
+        if (value != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return value;
+    }
+
+    public synchronized void put(K key, V value) {
+        mMap.put(key, value);
+    }
+
+    public synchronized void removeIf(BiPredicate<K, V> filter) {
+        mMap.entrySet().removeIf(entry -> filter.test(entry.getKey(), entry.getValue()));
+    }
+
+    /**
+     * 古いものから捨ててsize個以下にする
+     *
+     * @param size 残す数
+     * @return 捨てたキー
+     */
+    public synchronized List<K> trimToSize(int size) {
+        List<K> removed = new ArrayList<>();
+        Iterator<K> iterator = mMap.keySet().iterator();
+        for (int n = mMap.size() - size; n > 0 && iterator.hasNext(); n--) {
+            removed.add(iterator.next());
+            iterator.remove();
+        }
+        return removed;
+    }
+
+    public synchronized void clear() {
+        mMap.clear();
+    }
+
+    public synchronized int size() {
+        return mMap.size();
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    // ヒット率(%)
+    public synchronized int hitRate() {
+        int total = mHitCount + mMissCount;
+        return (total == 0) ? 0 : (100 * mHitCount / total);
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2024 kachaya
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.toribane.kkbd;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * 辞書から読んだ読みと表記を共有する
+ * どこからも参照されなくなった文字列は自然に消え、maxSizeを超えた分は共有しないで返す
+ */
+public class StringPool {
+    private final int mMaxSize;
+    private final WeakHashMap<String, WeakReference<String>> mMap = new WeakHashMap<>();
+
+    public StringPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    public synchronized String intern(String s) {
+        WeakReference<String> ref = mMap.get(s);
+        String pooled = (ref != null) ? ref.get() : null;
+        if (pooled != null) {
+            return pooled;
+        }
+        if (mMap.size() < mMaxSize) {
+            mMap.put(s, new WeakReference<>(s));
+        }
+        return s;
+    }
+
+    public synchronized int size() {
+        return mMap.size();
+    }
+}
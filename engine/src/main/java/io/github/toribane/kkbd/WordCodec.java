@@ -0,0 +1,256 @@
+/*
+ * Copyright 2024 kachaya
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.toribane.kkbd;
+
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * システム辞書の1つの読みに対する語句の列を符号化する
+ * <p>
+ * 先頭のMARKERに続いて、語句ごとに
+ * フラグ(1byte)、lid、rid、costの前の語句との差(zigzag varint)、表記
+ * を並べる。ridがlidと同じときは省略する。
+ * 表記は読みと同じ、読みのカタカナ、前に出た表記の繰り返しならば本体を書かない。
+ * それ以外は前の表記と共通する先頭部分の長さと残りの文字(UTF-16)を書く。
+ * <p>
+ * 旧形式(short lid, rid, cost, writeUTF(surface)の繰り返し)は先頭がlidの上位byteで0xFFにならないので、
+ * MARKERがなければ旧形式として読む
+ */
+public class WordCodec {
+    private static final int MARKER = 0xFF;
+    // フラグの下位2bitは表記の種類
+    private static final int KIND_MASK = 0x03;
+    private static final int KIND_LITERAL = 0;
+    private static final int KIND_READING = 1;
+    private static final int KIND_KATAKANA = 2;
+    private static final int KIND_REPEAT = 3;
+    private static final int FLAG_RID_EQ_LID = 0x04;
+
+    private WordCodec() {
+    }
+
+    /**
+     * @param words 同じ読みの語句、コストの順に並べ替えて差を小さくする
+     */
+    public static byte[] encode(List<Word> words) {
+        List<Word> list = new ArrayList<>(words);
+        list.sort(Comparator.comparingInt((Word w) -> w.cost).thenComparing(w -> w.surface));
+        String reading = list.get(0).reading;
+        String katakana = toKatakana(reading);
+        List<String> surfaces = new ArrayList<>();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MARKER);
+        int prevLid = 0, prevRid = 0, prevCost = 0;
+        String prevSurface = "";
+        for (Word w : list) {
+            int kind;
+            int repeat = surfaces.indexOf(w.surface);
+            if (w.surface.equals(reading)) {
+                kind = KIND_READING;
+            } else if (w.surface.equals(katakana)) {
+                kind = KIND_KATAKANA;
+            } else if (repeat >= 0) {
+                kind = KIND_REPEAT;
+            } else {
+                kind = KIND_LITERAL;
+            }
+            int flags = kind;
+            if (w.rid == w.lid) {
+                flags |= FLAG_RID_EQ_LID;
+            }
+            out.write(flags);
+            writeVarint(out, zigzag(w.lid - prevLid));
+            if (w.rid != w.lid) {
+                writeVarint(out, zigzag(w.rid - prevRid));
+            }
+            writeVarint(out, zigzag(w.cost - prevCost));
+            if (kind == KIND_REPEAT) {
+                writeVarint(out, repeat);
+            } else if (kind == KIND_LITERAL) {
+                int prefix = commonPrefix(prevSurface, w.surface);
+                writeVarint(out, prefix);
+                writeVarint(out, w.surface.length() - prefix);
+                for (int i = prefix; i < w.surface.length(); i++) {
+                    char c = w.surface.charAt(i);
+                    out.write(c >> 8);
+                    out.write(c);
+                }
+                surfaces.add(w.surface);
+                prevSurface = w.surface;
+            }
+            prevLid = w.lid;
+            prevRid = w.rid;
+            prevCost = w.cost;
+        }
+        return out.toByteArray();
+    }
+
+    public static void decode(String reading, byte[] bytes, Collection<Word> out) {
+        decode(reading, bytes, out, null);
+    }
+
+    /**
+     * @param reading 読み
+     * @param bytes   encode()か旧形式で書いたもの
+     * @param out     語句を追加する
+     * @param pool    読みと表記を共有する、nullなら共有しない
+     */
+    public static void decode(String reading, byte[] bytes, Collection<Word> out, @Nullable StringPool pool) {
+        if (bytes.length == 0) {
+            return;
+        }
+        if (pool != null) {
+            reading = pool.intern(reading);
+        }
+        if ((bytes[0] & 0xFF) != MARKER) {
+            decodeLegacy(reading, bytes, out, pool);
+            return;
+        }
+        String katakana = null;
+        String[] surfaces = null;
+        int surfaceCount = 0;
+        char[] buf = new char[0];
+        int bufLen = 0;    // bufは直前に書かれた表記
+        int lid = 0, rid = 0, cost = 0;
+        int[] pos = {1};
+        while (pos[0] < bytes.length) {
+            int flags = bytes[pos[0]++];
+            lid += unzigzag(readVarint(bytes, pos));
+            rid = ((flags & FLAG_RID_EQ_LID) != 0) ? lid : rid + unzigzag(readVarint(bytes, pos));
+            cost += unzigzag(readVarint(bytes, pos));
+            String surface;
+            switch (flags & KIND_MASK) {
+                case KIND_READING:
+                    surface = reading;
+                    break;
+                case KIND_KATAKANA:
+                    if (katakana == null) {
+                        katakana = toKatakana(reading);
+                        if (pool != null) {
+                            katakana = pool.intern(katakana);
+                        }
+                    }
+                    surface = katakana;
+                    break;
+                case KIND_REPEAT:
+                    surface = surfaces[readVarint(bytes, pos)];
+                    break;
+                default:
+                    int prefix = readVarint(bytes, pos);
+                    int length = readVarint(bytes, pos);
+                    if (buf.length < prefix + length) {
+                        buf = Arrays.copyOf(buf, Math.max(prefix + length, buf.length * 2));
+                    }
+                    int p = pos[0];
+                    for (int i = 0; i < length; i++, p += 2) {
+                        buf[prefix + i] = (char) (((bytes[p] & 0xFF) << 8) | (bytes[p + 1] & 0xFF));
+                    }
+                    pos[0] = p;
+                    bufLen = prefix + length;
+                    surface = new String(buf, 0, bufLen);
+                    if (pool != null) {
+                        surface = pool.intern(surface);
+                    }
+                    if (surfaces == null) {
+                        surfaces = new String[4];
+                    } else if (surfaceCount == surfaces.length) {
+                        surfaces = Arrays.copyOf(surfaces, surfaceCount * 2);
+                    }
+                    surfaces[surfaceCount++] = surface;
+                    break;
+            }
+            out.add(new Word(reading, (short) lid, (short) rid, (short) cost, surface));
+        }
+    }
+
+    // short lid, rid, cost, writeUTF(surface)の繰り返し
+    private static void decodeLegacy(String reading, byte[] bytes, Collection<Word> out, @Nullable StringPool pool) {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            while (dis.available() > 0) {
+                short lid = dis.readShort();
+                short rid = dis.readShort();
+                short cost = dis.readShort();
+                String surface = dis.readUTF();
+                if (pool != null) {
+                    surface = pool.intern(surface);
+                }
+                out.add(new Word(reading, lid, rid, cost, surface));
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    // ひらがなをカタカナにする
+    public static String toKatakana(String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            char c = chars[i];
+            if (c >= 'ぁ' && c <= 'ゖ') {
+                chars[i] = (char) (c + ('ァ' - 'ぁ'));
+            }
+        }
+        return new String(chars);
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int n = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < n && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int zigzag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    private static int unzigzag(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int n) {
+        while ((n & ~0x7F) != 0) {
+            out.write((n & 0x7F) | 0x80);
+            n >>>= 7;
+        }
+        out.write(n);
+    }
+
+    private static int readVarint(byte[] bytes, int[] pos) {
+        int p = pos[0];
+        int b = bytes[p++];
+        int n = b & 0x7F;
+        for (int shift = 7; b < 0; shift += 7) {
+            b = bytes[p++];
+            n |= (b & 0x7F) << shift;
+        }
+        pos[0] = p;
+        return n;
+    }
+}
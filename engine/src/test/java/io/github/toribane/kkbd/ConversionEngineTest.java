@@ -0,0 +1,148 @@
+/*
+ * Copyright 2024 kachaya
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.github.toribane.kkbd;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import jdbm.RecordManager;
+import jdbm.RecordManagerFactory;
+import jdbm.RecordManagerOptions;
+import jdbm.btree.BTree;
+import jdbm.helper.StringComparator;
+
+public class ConversionEngineTest {
+    private static final String BTREE_NAME = "btree_dic";
+    private static final short DIM = 4;
+
+    private Path mDir;
+    private ConversionEngine mEngine;
+
+    /*
+     * 「あい」の最良経路は「阿胃」、「あ」で終わるノードを1つだけ残すとコストの低い「亜」が残って「亜胃」になる
+     */
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("kkbd");
+        Properties props = new Properties();
+        props.setProperty(RecordManagerOptions.DISABLE_TRANSACTIONS, "true");
+        RecordManager recman = RecordManagerFactory.createRecordManager(
+                mDir.resolve(ConversionEngine.SYSTEM_DIC_NAME).toString(), props);
+        BTree btree = BTree.createInstance(recman, new StringComparator());
+        recman.setNamedObject(BTREE_NAME, btree.getRecid());
+        btree.insert("あ", WordCodec.encode(Arrays.asList(
+                new Word("あ", (short) 1, (short) 1, (short) 100, "亜"),
+                new Word("あ", (short) 2, (short) 2, (short) 3000, "阿"))), true);
+        btree.insert("い", WordCodec.encode(Collections.singletonList(
+                new Word("い", (short) 3, (short) 3, (short) 100, "胃"))), true);
+        recman.commit();
+        recman.close();
+
+        mEngine = new ConversionEngine(mDir.toString(), new ConnectionTable(DIM, buildCosts()));
+    }
+
+    private static short[] buildCosts() {
+        short[] costs = new short[DIM * DIM];
+        costs[DIM + 3] = 8000;   // 「亜」の後の「胃」
+        return costs;
+    }
+
+    // 連接コスト表のファイルの内容
+    private static byte[] buildConnectionBytes() {
+        short[] costs = buildCosts();
+        ByteBuffer bb = ByteBuffer.allocate(2 * (1 + costs.length));
+        bb.putShort(DIM);
+        bb.asShortBuffer().put(costs);
+        return bb.array();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mEngine.close();
+        try (Stream<Path> stream = Files.walk(mDir)) {
+            for (Path path : (Iterable<Path>) stream.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void pruningAgreementWithoutPruning() {
+        assertEquals(100, mEngine.measurePruningAgreement(Collections.singletonList("あい")));
+    }
+
+    @Test
+    public void strongPruningLowersAgreement() {
+        List<String> readings = Collections.singletonList("あい");
+        mEngine.setPruning(0, 1);
+        assertEquals(0, mEngine.measurePruningAgreement(readings));
+        // 前回確定した候補は比べないので一致したことにならない
+        mEngine.addLearning(new Candidate("あい", "あい"));
+        assertEquals(0, mEngine.measurePruningAgreement(readings));
+    }
+
+    @Test
+    public void resultsWithoutConnectionAreNotCached() throws Exception {
+        boolean[] readable = {true};
+        ConnectionTable connection = ConnectionTable.open(() -> {
+            if (!readable[0]) {
+                throw new IOException("not readable");
+            }
+            return new ByteArrayInputStream(buildConnectionBytes());
+        });
+        ConversionEngine engine = new ConversionEngine(mDir.toString(), connection);
+        try {
+            assertEquals("阿胃", engine.buildConversionCandidate("あい", 2)[0].surface);
+            // 手放した表が読み直せない間は連接コストを0として変換する
+            engine.onTrim(MemoryManager.TRIM_RELEASE);
+            readable[0] = false;
+            assertEquals("亜胃", engine.buildConversionCandidate("あい", 2)[0].surface);
+            // 読み直せるようになったらキャッシュではなく作り直した結果を返す
+            readable[0] = true;
+            Thread.sleep(1100);
+            assertEquals("阿胃", engine.buildConversionCandidate("あい", 2)[0].surface);
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void convertWithoutConnection() {
+        ConversionEngine engine = new ConversionEngine(mDir.toString(), null);
+        try {
+            assertEquals("亜胃", engine.buildConversionCandidate("あい", 2)[0].surface);
+        } finally {
+            engine.close();
+        }
+    }
+}
@@ -0,0 +1,531 @@
+/*
+ * Copyright 2024 kachaya
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.toribane.kkbd;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * 端末で記録したキー入力を変換エンジンで再生して、処理時間、メモリ確保量、確定した候補の順位を調べる
+ * <p>
+ * 使い方: KeyTraceReplay 辞書ディレクトリ 記録ファイル [--warmup 回数] [--ranks 出力ファイル] [--baseline 前回の出力ファイル]
+ * [--heap] [--intern] [--pruning 語句数,ビーム幅]
+ * <p>
+ * --heapはHEAP_SAMPLE_INTERVALイベントごとにGCしてから使用中のヒープを調べる、処理時間は参考にならなくなる
+ * --internは辞書から読んだ文字列をStringPoolで共有する
+ * --pruningは枝刈りをして再生し、確定した読みの最良候補が枝刈りなしと一致する割合も調べる
+ * <p>
+ * 辞書ディレクトリにはsystem_dic.dbとconnectionで始まる連接コスト表を置く
+ * 学習辞書は毎回空の状態から始めるので、端末の学習内容には左右されない
+ */
+public class KeyTraceReplay {
+    private static final int HEAP_SAMPLE_INTERVAL = 200;
+    // 候補の続きの取り出し方はKeyboardServiceと同じ
+    private static final int CANDIDATE_PAGE_SIZE = 20;
+    private static final int CANDIDATE_PANEL_PAGE_SIZE = 100;
+    private static final int MAX_CANDIDATE_COUNT = 500;
+
+    private final List<KeyTrace.Event> mEvents;
+    private final File mDicDir;
+    private final ConnectionTable mConnection;
+    private final com.sun.management.ThreadMXBean mThreadMXBean;
+    // イベントの種類ごとの処理時間(ns)とメモリ確保量(byte)
+    private final Map<String, List<Long>> mLatencies = new LinkedHashMap<>();
+    private final Map<String, List<Long>> mAllocations = new LinkedHashMap<>();
+    // 確定した候補の再生での順位と記録時の順位、見つからなければ-1
+    private final List<Integer> mRanks = new ArrayList<>();
+    private final List<Integer> mRecordedRanks = new ArrayList<>();
+    private final List<String> mSurfaces = new ArrayList<>();
+    // GC後の使用中ヒープ
+    private boolean mHeapSampling;
+    private boolean mStringPoolEnabled;
+    private final List<Long> mHeapSamples = new ArrayList<>();
+    // 枝刈り、0ならしない
+    private int mPruningWordCount;
+    private int mPruningBeamWidth;
+    private final List<String> mCommittedReadings = new ArrayList<>();
+    private int mPruningAgreement = -1;
+
+    // 再生中の入力状態、KeyboardServiceと同じ動きをする
+    private ConversionEngine mEngine;
+    private boolean mStreamingConversion;
+    // 先頭部分の自動確定が記録されていればそれに従う、古い記録では文字ごとに判定する
+    private final boolean mTracedPrefix;
+    private final StringBuilder mInputText = new StringBuilder();
+    private int mConvertLength;
+    private int mCandidateIndex = -1;
+    private Candidate[] mCandidates = new Candidate[0];
+    private CandidateIterator mCandidateIterator;
+
+    public KeyTraceReplay(File dicDir, List<KeyTrace.Event> events) throws IOException {
+        mDicDir = dicDir;
+        mEvents = reorder(events);
+        mTracedPrefix = events.stream().anyMatch(event -> event.type.equals(KeyTrace.PREFIX));
+        File[] files = dicDir.listFiles((d, name) -> name.startsWith("connection"));
+        if (files == null || files.length == 0) {
+            throw new IOException("connection not found in " + dicDir);
+        }
+        mConnection = ConnectionTable.read(new FileInputStream(files[0]));
+        mThreadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        mThreadMXBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    // 確定はそれを起こしたキーの後に記録されているので、キーより前に動かす
+    private static List<KeyTrace.Event> reorder(List<KeyTrace.Event> events) {
+        List<KeyTrace.Event> list = new ArrayList<>(events);
+        for (int i = 1; i < list.size(); i++) {
+            String prev = list.get(i - 1).type;
+            if (list.get(i).type.equals(KeyTrace.COMMIT)
+                    && (prev.equals(KeyTrace.CHARACTER) || prev.equals(KeyTrace.STRING)
+                    || prev.equals(KeyTrace.ENTER) || prev.equals(KeyTrace.SYMBOL))) {
+                list.add(i - 1, list.remove(i));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * 記録を最初から最後まで再生する
+     *
+     * @param measure falseならウォームアップとして結果を残さない
+     */
+    public void run(boolean measure) throws IOException {
+        Path dir = Files.createTempDirectory("kkbd");
+        Files.copy(new File(mDicDir, ConversionEngine.SYSTEM_DIC_NAME + ".db").toPath(),
+                dir.resolve(ConversionEngine.SYSTEM_DIC_NAME + ".db"), StandardCopyOption.REPLACE_EXISTING);
+        mEngine = new ConversionEngine(dir.toString(), mConnection);
+        mEngine.setStringPoolEnabled(mStringPoolEnabled);
+        mEngine.setPruning(mPruningWordCount, mPruningBeamWidth);
+        try {
+            long threadId = Thread.currentThread().getId();
+            int count = 0;
+            for (KeyTrace.Event event : mEvents) {
+                long allocated = mThreadMXBean.getThreadAllocatedBytes(threadId);
+                long start = System.nanoTime();
+                handleEvent(event, measure);
+                long elapsed = System.nanoTime() - start;
+                allocated = mThreadMXBean.getThreadAllocatedBytes(threadId) - allocated;
+                // 学習の書き込みは端末では別スレッドで行うので、待つ時間は含めない
+                mEngine.flushLearning();
+                if (measure) {
+                    mLatencies.computeIfAbsent(event.type, k -> new ArrayList<>()).add(elapsed);
+                    mAllocations.computeIfAbsent(event.type, k -> new ArrayList<>()).add(allocated);
+                    if (mHeapSampling && ++count % HEAP_SAMPLE_INTERVAL == 0) {
+                        mHeapSamples.add(usedHeapAfterGc());
+                    }
+                }
+            }
+            if (measure && mHeapSampling) {
+                mHeapSamples.add(usedHeapAfterGc());
+            }
+            // 再生後の学習状態で、確定した読みを枝刈りありとなしで変換して比べる
+            if (measure && (mPruningWordCount > 0 || mPruningBeamWidth > 0)) {
+                mPruningAgreement = mEngine.measurePruningAgreement(mCommittedReadings);
+            }
+        } finally {
+            mEngine.close();
+            try (Stream<Path> stream = Files.walk(dir)) {
+                for (Path path : (Iterable<Path>) stream.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    public void setHeapSampling(boolean heapSampling) {
+        mHeapSampling = heapSampling;
+    }
+
+    public void setStringPoolEnabled(boolean enabled) {
+        mStringPoolEnabled = enabled;
+    }
+
+    public void setPruning(int wordCount, int beamWidth) {
+        mPruningWordCount = wordCount;
+        mPruningBeamWidth = beamWidth;
+    }
+
+    private static long usedHeapAfterGc() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException ignored) {
+            }
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private void handleEvent(KeyTrace.Event event, boolean measure) {
+        switch (event.type) {
+            case KeyTrace.START:
+                mStreamingConversion = event.arg.equals("streaming=1");
+                resetInput();
+                break;
+            case KeyTrace.CHARACTER:
+                if (!event.arg.isEmpty()) {
+                    handleCharacter(event.arg.charAt(0));
+                }
+                break;
+            case KeyTrace.BACKSPACE:
+                handleBackspace();
+                break;
+            case KeyTrace.SPACE:
+                handleSpace();
+                break;
+            case KeyTrace.CURSOR_LEFT:
+                if (mInputText.length() > 0) {
+                    mConvertLength = Math.max(1, mConvertLength - 1);
+                    updateConversion();
+                }
+                break;
+            case KeyTrace.CURSOR_RIGHT:
+                if (mInputText.length() > 0) {
+                    mConvertLength = Math.min(mInputText.length(), mConvertLength + 1);
+                    updateConversion();
+                }
+                break;
+            case KeyTrace.ENTER:
+            case KeyTrace.SYMBOL:
+            case KeyTrace.STRING:
+                // 候補の確定は先に済んでいるので、残っている入力テキストをそのままコミットする
+                if (mInputText.length() > 0) {
+                    resetInput();
+                }
+                break;
+            case KeyTrace.COMMIT:
+                commitCandidate(event.arg, measure);
+                break;
+            case KeyTrace.PREFIX:
+                commitTracedPrefix(event.arg);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void resetInput() {
+        mInputText.setLength(0);
+        mConvertLength = 0;
+        mCandidateIndex = -1;
+        mCandidates = new Candidate[0];
+        mCandidateIterator = null;
+    }
+
+    private void updateConversion() {
+        mCandidates = mEngine.buildConversionCandidate(mInputText, mConvertLength);
+        mCandidateIndex = -1;
+        mCandidateIterator = null;
+    }
+
+    // 最後の候補の次は続きを取り出して選ぶ、なければ先頭に戻る
+    private void handleSpace() {
+        if (mInputText.length() == 0 || mCandidates.length == 0) {
+            return;
+        }
+        int index = mCandidateIndex + 1;
+        if (index >= mCandidates.length && !loadMoreCandidates(CANDIDATE_PAGE_SIZE)) {
+            index = 0;
+        }
+        mCandidateIndex = index;
+    }
+
+    // 表示している変換候補の続きを後ろに追加する、追加できたらtrue
+    private boolean loadMoreCandidates(int count) {
+        if (mInputText.length() == 0) {
+            return false;   // 予測候補には続きはない
+        }
+        count = Math.min(count, MAX_CANDIDATE_COUNT - mCandidates.length);
+        if (count <= 0) {
+            return false;
+        }
+        if (mCandidateIterator == null) {
+            mCandidateIterator = mEngine.openCandidateIterator(mInputText, mConvertLength, mCandidates);
+        }
+        List<Candidate> more = mCandidateIterator.next(count);
+        if (more.isEmpty()) {
+            return false;
+        }
+        int start = mCandidates.length;
+        mCandidates = Arrays.copyOf(mCandidates, start + more.size());
+        for (int i = 0; i < more.size(); i++) {
+            mCandidates[start + i] = more.get(i);
+        }
+        return true;
+    }
+
+    private int findCandidate(String surface) {
+        for (int i = 0; i < mCandidates.length; i++) {
+            if (mCandidates[i].surface.equals(surface)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void handleCharacter(char c) {
+        int len = mInputText.length();
+        if (len > 0) {
+            char c2 = '\0';
+            if (c == '゛') {
+                c2 = Converter.combineDakuten(mInputText.charAt(len - 1));
+            } else if (c == '゜') {
+                c2 = Converter.combineHandakuten(mInputText.charAt(len - 1));
+            }
+            if (c2 != '\0') {
+                mInputText.deleteCharAt(len - 1);
+                c = c2;
+            }
+        }
+        mInputText.append(c);
+        if (mStreamingConversion && !mTracedPrefix) {
+            Candidate candidate = mEngine.buildStreamingCandidate(mInputText);
+            if (candidate != null) {
+                commitPrefix(candidate);
+            }
+        }
+        mConvertLength = mInputText.length();
+        updateConversion();
+    }
+
+    // 記録された先頭部分を確定する、同じ候補が見つからなければ表記だけ学習する
+    private void commitTracedPrefix(String arg) {
+        int colon = arg.indexOf(':');
+        int len = Integer.parseInt(arg.substring(0, colon));
+        String surface = arg.substring(colon + 1);
+        if (len <= 0 || len > mInputText.length()) {
+            return;
+        }
+        Candidate candidate = mEngine.buildStreamingCandidate(mInputText);
+        if (candidate == null || candidate.reading.length() != len || !candidate.surface.equals(surface)) {
+            candidate = new Candidate(mInputText.substring(0, len), surface);
+        }
+        commitPrefix(candidate);
+        mConvertLength = mInputText.length();
+        updateConversion();
+    }
+
+    // 端末と同じく確定した先頭部分を学習してから入力テキストから除く
+    private void commitPrefix(Candidate candidate) {
+        mEngine.addLearning(candidate);
+        mInputText.delete(0, candidate.reading.length());
+    }
+
+    private void handleBackspace() {
+        if (mInputText.length() == 0) {
+            return;
+        }
+        if (mCandidateIndex >= 0) {
+            mCandidateIndex = -1;
+            return;
+        }
+        mInputText.deleteCharAt(mInputText.length() - 1);
+        if (mInputText.length() == 0) {
+            resetInput();
+        } else {
+            mConvertLength = mInputText.length();
+            updateConversion();
+        }
+    }
+
+    // 記録と同じ表記の候補を確定する、なければ入力テキストを捨てる
+    private void commitCandidate(String arg, boolean measure) {
+        int colon = arg.indexOf(':');
+        int recordedRank = Integer.parseInt(arg.substring(0, colon));
+        String surface = arg.substring(colon + 1);
+        int rank = findCandidate(surface);
+        // 記録時に続きから選んだ候補なら、学習で順位が変わっていても続きを取り出して探す
+        while (rank < 0 && recordedRank >= CANDIDATE_PAGE_SIZE && loadMoreCandidates(CANDIDATE_PANEL_PAGE_SIZE)) {
+            rank = findCandidate(surface);
+        }
+        if (measure) {
+            mRanks.add(rank);
+            mRecordedRanks.add(recordedRank);
+            mSurfaces.add(surface);
+        }
+        if (rank < 0) {
+            resetInput();
+            return;
+        }
+        Candidate candidate = mCandidates[rank];
+        if (measure) {
+            mCommittedReadings.add(candidate.reading);
+        }
+        mEngine.addLearning(candidate);
+        Candidate[] predictions = mEngine.buildPredictionCandidate(candidate);
+        resetInput();
+        mCandidates = predictions;
+    }
+
+    private static long percentile(long[] sorted, double percent) {
+        int index = (int) Math.ceil(sorted.length * percent / 100) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static long[] sorted(List<Long> values) {
+        long[] array = new long[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        Arrays.sort(array);
+        return array;
+    }
+
+    public void report(PrintStream out) {
+        out.println("event  count   p50(us)   p95(us)   p99(us)   max(us)  alloc p50(B)  alloc p95(B)  alloc max(B)");
+        for (Map.Entry<String, List<Long>> entry : mLatencies.entrySet()) {
+            long[] latency = sorted(entry.getValue());
+            long[] alloc = sorted(mAllocations.get(entry.getKey()));
+            out.printf("%-5s %6d %9.1f %9.1f %9.1f %9.1f %13d %13d %13d%n",
+                    entry.getKey(), latency.length,
+                    percentile(latency, 50) / 1000.0, percentile(latency, 95) / 1000.0,
+                    percentile(latency, 99) / 1000.0, latency[latency.length - 1] / 1000.0,
+                    percentile(alloc, 50), percentile(alloc, 95), alloc[alloc.length - 1]);
+        }
+        if (!mHeapSamples.isEmpty()) {
+            long[] heap = sorted(mHeapSamples);
+            out.printf("%nheap after gc: samples=%d p50=%d KB max=%d KB end=%d KB%n", heap.length,
+                    percentile(heap, 50) / 1024, heap[heap.length - 1] / 1024,
+                    mHeapSamples.get(mHeapSamples.size() - 1) / 1024);
+        }
+        if (mPruningAgreement >= 0) {
+            out.printf("%npruning: words=%d beam=%d readings=%d top1 agreement=%d%%%n",
+                    mPruningWordCount, mPruningBeamWidth, mCommittedReadings.size(), mPruningAgreement);
+        }
+        out.println();
+        reportRanks(out, "recorded", mRecordedRanks);
+    }
+
+    /**
+     * 確定した候補の順位を比べる
+     *
+     * @param name     比べる相手の名前
+     * @param expected 比べる相手の順位
+     */
+    public void reportRanks(PrintStream out, String name, List<Integer> expected) {
+        int same = 0, up = 0, down = 0, missing = 0;
+        List<String> changes = new ArrayList<>();
+        int n = Math.min(expected.size(), mRanks.size());
+        for (int i = 0; i < n; i++) {
+            int rank = mRanks.get(i);
+            int base = expected.get(i);
+            if (rank == base) {
+                same++;
+                continue;
+            }
+            if (rank < 0) {
+                missing++;
+            } else if (base < 0 || rank < base) {
+                up++;
+            } else {
+                down++;
+            }
+            changes.add(String.format("  #%d %s: %d -> %d", i, mSurfaces.get(i), base, rank));
+        }
+        out.printf("rank vs %s: commits=%d same=%d up=%d down=%d missing=%d%n", name, n, same, up, down, missing);
+        for (String change : changes) {
+            out.println(change);
+        }
+    }
+
+    public List<Integer> getRanks() {
+        return mRanks;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: KeyTraceReplay <dicDir> <trace> [--warmup n] [--ranks out] [--baseline ranks] [--heap] [--intern] [--pruning words,beam]");
+            System.exit(1);
+        }
+        int warmup = 3;
+        String ranksPath = null;
+        String baselinePath = null;
+        boolean heapSampling = false;
+        boolean stringPool = false;
+        int pruningWordCount = 0;
+        int pruningBeamWidth = 0;
+        for (int i = 2; i < args.length; i++) {
+            switch (args[i]) {
+                case "--warmup":
+                    warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "--ranks":
+                    ranksPath = args[++i];
+                    break;
+                case "--baseline":
+                    baselinePath = args[++i];
+                    break;
+                case "--heap":
+                    heapSampling = true;
+                    break;
+                case "--intern":
+                    stringPool = true;
+                    break;
+                case "--pruning": {
+                    String[] ss = args[++i].split(",");
+                    pruningWordCount = Integer.parseInt(ss[0]);
+                    pruningBeamWidth = (ss.length > 1) ? Integer.parseInt(ss[1]) : 0;
+                    break;
+                }
+                default:
+                    System.err.println("unknown option: " + args[i]);
+                    System.exit(1);
+            }
+        }
+        KeyTraceReplay replay = new KeyTraceReplay(new File(args[0]), KeyTrace.read(new File(args[1])));
+        replay.setHeapSampling(heapSampling);
+        replay.setStringPoolEnabled(stringPool);
+        replay.setPruning(pruningWordCount, pruningBeamWidth);
+        for (int i = 0; i < warmup; i++) {
+            replay.run(false);
+        }
+        replay.run(true);
+        replay.report(System.out);
+
+        if (baselinePath != null) {
+            List<Integer> baseline = new ArrayList<>();
+            for (String line : Files.readAllLines(Path.of(baselinePath), StandardCharsets.UTF_8)) {
+                if (!line.isEmpty()) {
+                    baseline.add(Integer.parseInt(line.trim()));
+                }
+            }
+            System.out.println();
+            replay.reportRanks(System.out, "baseline", baseline);
+        }
+        if (ranksPath != null) {
+            List<String> lines = new ArrayList<>();
+            for (int rank : replay.getRanks()) {
+                lines.add(Integer.toString(rank));
+            }
+            Files.write(Path.of(ranksPath), lines, StandardCharsets.UTF_8);
+        }
+    }
+}